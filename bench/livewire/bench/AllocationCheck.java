@@ -0,0 +1,178 @@
+package livewire.bench;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_highgui;
+import livewire.EventQueue;
+import livewire.Features;
+import livewire.HeadlessDisplay;
+import livewire.ImageBuffer;
+import livewire.LivewireEngine;
+import livewire.Metrics;
+import livewire.WireRenderer;
+
+import java.util.Locale;
+
+
+/**
+ * Verifies that the interactive hot path allocates nothing on the Java heap
+ * once warmed up, so annotation never waits for the garbage collector. It
+ * scripts a session like a user's: a seed snapped to an edge, then mouse
+ * moves that are queued, polled and drawn as live-wires, and every so often
+ * a click that cools the boundary and re-seeds the expansion. The JVM's
+ * per-thread allocation counter is read around each phase. The session runs
+ * through LivewireEngine, as the application's does.
+ *
+ * <p>The session is played twice: once walking the live-wires as the
+ * HeadlessDisplay does, and once drawing them and the cooled boundary with a
+ * WireRenderer, as the application's window does. Each time, after a few
+ * warm-up sessions that compile the code and grow the buffers to size, every
+ * checked session must allocate nothing.</p>
+ *
+ * <pre>
+ * USAGE: AllocationCheck [--moves n] [image]
+ * </pre>
+ *
+ * Without an image a synthetic cost image is used, which needs no native
+ * libraries; the WireRenderer needs OpenCV, and is skipped with a warning if
+ * it cannot be loaded. Exits with status 1 if a mouse move, seed or cool
+ * allocated.
+ *
+ * @author James Gomez
+ */
+public class AllocationCheck
+{
+    private static final int ROWS = 600;
+    private static final int COLS = 800;
+    /** the number of moves between cooling clicks */
+    private static final int MOVES_PER_COOL = 200;
+    /** the sessions played before checking, to compile the code and size the buffers */
+    private static final int WARMUP_SESSIONS = 5;
+    /** the sessions played after warming up, all of which must be clean */
+    private static final int CHECKED_SESSIONS = 5;
+
+    private final LivewireEngine engine;
+    private final int rows;
+    private final int cols;
+    private final EventQueue events;
+    private final HeadlessDisplay display = new HeadlessDisplay();
+    /** draws the wires instead of the display, if set */
+    private WireRenderer renderer;
+    private final long[] event = new long[4];
+    /** the bytes allocated by moves, seeds and cools during the last session */
+    private long moveBytes;
+    private long seedBytes;
+    private long coolBytes;
+    private long overhead;
+
+    public AllocationCheck(ImageBuffer costs) {
+        rows = costs.rows();
+        cols = costs.cols();
+        engine = new LivewireEngine(costs);
+        events = new EventQueue(rows, cols);
+        //what reading the counter costs by itself, if anything
+        overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            long before = Metrics.allocatedBytes();
+            overhead = Math.min(overhead, Metrics.allocatedBytes() - before);
+        }
+    }
+
+    public static void main(String[] args) {
+        int moves = 2000;
+        String path = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--moves")) moves = Integer.parseInt(args[++i]);
+            else path = args[i];
+        }
+        if (Metrics.allocatedBytes() < 0) {
+            System.out.println("This JVM cannot count allocated bytes");
+            System.exit(1);
+        }
+
+        ImageBuffer costs = path == null
+                ? BenchImages.pattern(ROWS, COLS, 1)
+                : ImageBuffer.wrap(Features.costImage(BenchImages.loadGray(path)));
+        AllocationCheck check = new AllocationCheck(costs);
+
+        boolean clean = check.run("HeadlessDisplay", moves);
+        try {
+            CvMat image = path == null
+                    ? CvMat.create(check.rows, check.cols, opencv_core.CV_8U, 3)
+                    : opencv_highgui.cvLoadImageM(path);
+            if (path == null) opencv_core.cvSetZero(image);
+            check.renderer = new WireRenderer(image);
+        }
+        catch (LinkageError e) {
+            System.out.println("WARNING: OpenCV is not available, so the WireRenderer is not checked");
+        }
+        if (check.renderer != null)
+            clean &= check.run("WireRenderer", moves);
+
+        if (!clean) {
+            System.out.println("FAILED: the interactive path allocates");
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+    }
+
+    /**
+     * Plays the warm-up sessions, then the checked sessions, printing what
+     * each checked session allocated
+     *
+     * @return whether no checked session allocated
+     */
+    boolean run(String name, int moves) {
+        for (int i = 0; i < WARMUP_SESSIONS; i++)
+            session(moves);
+        boolean clean = true;
+        for (int i = 0; i < CHECKED_SESSIONS; i++) {
+            session(moves);
+            System.out.println(String.format(Locale.ROOT,
+                    "%s session %d, %d moves: %d bytes, seeds: %d bytes, cools: %d bytes",
+                    name, i + 1, moves, moveBytes, seedBytes, coolBytes));
+            if (moveBytes != 0 || seedBytes != 0 || coolBytes != 0) clean = false;
+        }
+        return clean;
+    }
+
+    /** Plays one scripted session of the given number of mouse moves */
+    void session(int moves) {
+        moveBytes = 0;
+        seedBytes = 0;
+        coolBytes = 0;
+
+        long before = Metrics.allocatedBytes();
+        engine.seed(cols / 4, rows / 2);
+        seedBytes += Metrics.allocatedBytes() - before - overhead;
+
+        for (int i = 0; i < moves; i++) {
+            //circle around the image centre
+            double angle = 2 * Math.PI * i / moves;
+            int x = (int) (cols / 2 - cols / 4 * Math.cos(angle));
+            int y = (int) (rows / 2 + rows / 4 * Math.sin(angle));
+
+            before = Metrics.allocatedBytes();
+            events.post(opencv_highgui.CV_EVENT_MOUSEMOVE, x, y);
+            while (events.poll(event)) {
+                int start = engine.path((int) event[1], (int) event[2]);
+                if (renderer != null)
+                    renderer.drawLiveWire(engine, start, engine.seed());
+                else
+                    display.drawLiveWire(engine, start, engine.seed());
+            }
+            moveBytes += Metrics.allocatedBytes() - before - overhead;
+
+            if (i % MOVES_PER_COOL == MOVES_PER_COOL - 1) {
+                before = Metrics.allocatedBytes();
+                boolean closed = engine.cool(x, y);
+                if (renderer != null)
+                    renderer.drawCoolWire(engine.boundary());
+                else
+                    display.drawCoolWire(engine.boundary());
+                coolBytes += Metrics.allocatedBytes() - before - overhead;
+                if (closed) break;
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package livewire.bench;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_highgui;
+import com.googlecode.javacv.cpp.opencv_imgproc;
+import livewire.ImageBuffer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * The images benchmarks run on: the sample images in res/, upscaled
+ * variants of them, and synthetic patterns that need no native libraries.
+ *
+ * @author James Gomez
+ */
+public final class BenchImages
+{
+    /** The sample images, from the smallest to the largest */
+    public static final String[] SAMPLES = {
+            "coin", "apple", "orange", "banana", "skull1", "skull2", "chest",
+            "brain_med", "brain_big"
+    };
+
+    private BenchImages() {
+    }
+
+    /** @return the paths of the sample images found in the given directory */
+    public static List<String> samples(String directory) {
+        List<String> paths = new ArrayList<String>();
+        for (String name : SAMPLES) {
+            File file = new File(directory, name + ".jpg");
+            if (file.isFile()) paths.add(file.getPath());
+        }
+        return paths;
+    }
+
+    /** @return the image at path as 8-bit grayscale */
+    public static CvMat loadGray(String path) {
+        CvMat image = opencv_highgui.cvLoadImageM(path, opencv_core.CV_8U);
+        if (image == null)
+            throw new IllegalArgumentException("Could not load image " + path);
+        return image;
+    }
+
+    /**
+     * @return the image resized, keeping its aspect ratio, to about the given
+     * number of megapixels
+     */
+    public static CvMat upscale(CvMat image, double megapixels) {
+        double f = Math.sqrt(megapixels * 1e6 / ((double) image.rows() * image.cols()));
+        int rows = (int) Math.round(image.rows() * f);
+        int cols = (int) Math.round(image.cols() * f);
+        CvMat scaled = CvMat.create(rows, cols, image.type(), image.channels());
+        opencv_imgproc.cvResize(image, scaled, opencv_imgproc.CV_INTER_LINEAR);
+        return scaled;
+    }
+
+    /** @return the number of rows of a 4:3 image of about the given megapixels */
+    public static int patternRows(double megapixels) {
+        return (int) Math.round(Math.sqrt(megapixels * 1e6 * 3 / 4));
+    }
+
+    /** @return the number of columns of a 4:3 image of about the given megapixels */
+    public static int patternCols(double megapixels) {
+        return (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+    }
+
+    /**
+     * Creates a synthetic 8-bit cost image in Java: concentric low-cost rings,
+     * like the edges of round objects, over a noisy high-cost background.
+     */
+    public static ImageBuffer pattern(int rows, int cols, long seed) {
+        ImageBuffer image = ImageBuffer.allocate(rows, cols, opencv_core.CV_8U);
+        Random random = new Random(seed);
+        int cx = cols / 2;
+        int cy = rows / 2;
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                int r = (int) Math.sqrt((double) (i - cy) * (i - cy) + (double) (j - cx) * (j - cx));
+                int ring = Math.abs(r % 64 - 32);
+                image.put(i, j, Math.min(255, 40 + ring * 6 + random.nextInt(24)));
+            }
+        }
+        return image;
+    }
+
+    /** @return a short description of an image's size */
+    public static String describe(String name, int rows, int cols) {
+        return name + " " + cols + "x" + rows;
+    }
+
+    /** @return a short description of an image file's name and size */
+    public static String describe(String path, CvMat image) {
+        String name = new File(path).getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        return describe(name, image.rows(), image.cols());
+    }
+}
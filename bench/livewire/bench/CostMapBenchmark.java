@@ -0,0 +1,187 @@
+package livewire.bench;
+
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import livewire.CostMap;
+import livewire.Features;
+import livewire.ImageBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Benchmarks the CostMap operations of an interactive session: reset,
+ * addSeed (which expands the whole image), snapToEdge, getClosestEdge and
+ * extracting a path by following parent pointers. Each operation is measured
+ * on every image and thread count given; each thread works on its own
+ * CostMap over the shared local cost image.
+ *
+ * <pre>
+ * USAGE: CostMapBenchmark [options] [image ...]
+ *   -t 1,2,4      thread counts (default 1)
+ *   -s 4,16,50    megapixels of upscaled variants of the last image
+ *   -b names      benchmarks to run (default all)
+ *   -w n, -i n    warmup and measurement iterations (default 3, 5)
+ *   -r millis     time per iteration (default 1000)
+ *   --csv file    append the results to a CSV history
+ *   --label text  label the results in the history, e.g. with a revision
+ *   --pattern     use synthetic cost images instead of image files
+ * </pre>
+ *
+ * Without image arguments the sample images in res/ are used. Upscaled
+ * variants of 16 megapixels and more need a heap of several gigabytes per
+ * thread (-Xmx).
+ *
+ * @author James Gomez
+ */
+public class CostMapBenchmark
+{
+    public static final String RESET = "reset";
+    public static final String ADD_SEED = "addSeed";
+    public static final String SNAP_TO_EDGE = "snapToEdge";
+    public static final String CLOSEST_EDGE = "getClosestEdge";
+    public static final String PATH = "pathExtraction";
+    private static final List<String> ALL =
+            Arrays.asList(RESET, ADD_SEED, SNAP_TO_EDGE, CLOSEST_EDGE, PATH);
+
+    /** the number of precomputed random points each operation cycles through */
+    private static final int POINTS = 1024;
+    private static final int SNAP_DISTANCE = 7;
+
+    public static void main(String[] args) throws Exception {
+        Harness harness = new Harness();
+        int[] threads = {1};
+        int[] sizes = {4, 16, 50};
+        List<String> benchmarks = ALL;
+        boolean pattern = false;
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-t")) threads = Harness.parseInts(args[++i]);
+            else if (args[i].equals("-s")) sizes = Harness.parseInts(args[++i]);
+            else if (args[i].equals("-b")) benchmarks = Harness.parseNames(args[++i]);
+            else if (args[i].equals("--pattern")) pattern = true;
+            else {
+                int last = harness.parseOption(args, i);
+                if (last >= 0) i = last;
+                else paths.add(args[i]);
+            }
+        }
+
+        Harness.printHeader();
+        if (pattern) {
+            for (int mp : withBase(sizes)) {
+                int rows = BenchImages.patternRows(mp);
+                int cols = BenchImages.patternCols(mp);
+                ImageBuffer costs = BenchImages.pattern(rows, cols, 1);
+                run(harness, benchmarks, threads, BenchImages.describe("pattern", rows, cols), costs);
+            }
+            return;
+        }
+
+        if (paths.isEmpty()) paths = BenchImages.samples("res");
+        CvMat last = null;
+        for (String path : paths) {
+            last = BenchImages.loadGray(path);
+            run(harness, benchmarks, threads, BenchImages.describe(path, last), costImage(last));
+        }
+        if (last != null) {
+            for (int mp : sizes) {
+                CvMat scaled = BenchImages.upscale(last, mp);
+                String name = BenchImages.describe(paths.get(paths.size() - 1), scaled) +
+                        " (" + mp + "MP)";
+                run(harness, benchmarks, threads, name, costImage(scaled));
+            }
+        }
+    }
+
+    /** Runs the selected benchmarks on one cost image at each thread count */
+    static void run(Harness harness, List<String> benchmarks, int[] threads,
+            String param, ImageBuffer costs) throws Exception
+    {
+        for (String benchmark : benchmarks) {
+            for (int t : threads) {
+                harness.report(harness.run(benchmark, param, t, fixture(benchmark, costs)));
+            }
+        }
+    }
+
+    /** @return a Fixture creating the named operation over the given costs */
+    static Harness.Fixture fixture(final String benchmark, final ImageBuffer costs) {
+        if (!ALL.contains(benchmark))
+            throw new IllegalArgumentException("Unknown benchmark " + benchmark +
+                    ", expected one of " + ALL);
+
+        return new Harness.Fixture()
+        {
+            @Override
+            public Harness.Operation create(int thread) {
+                final CostMap map = new CostMap(costs);
+                final int[] rows = new int[POINTS];
+                final int[] cols = new int[POINTS];
+                Random random = new Random(42 + thread);
+                for (int i = 0; i < POINTS; i++) {
+                    rows[i] = random.nextInt(costs.rows());
+                    cols[i] = random.nextInt(costs.cols());
+                }
+                final int seedRow = costs.rows() / 2;
+                final int seedCol = costs.cols() / 2;
+                if (benchmark.equals(CLOSEST_EDGE) || benchmark.equals(PATH))
+                    map.addSeed(seedRow, seedCol);
+
+                return new Harness.Operation()
+                {
+                    private int next;
+
+                    @Override
+                    public long run() {
+                        int i = next++ & (POINTS - 1);
+                        if (benchmark.equals(RESET)) {
+                            map.reset();
+                            return map.cost(map.index(rows[i], cols[i]));
+                        }
+                        if (benchmark.equals(ADD_SEED)) {
+                            map.addSeed(rows[i], cols[i]);
+                            return map.cost(map.index(seedRow, seedCol));
+                        }
+                        if (benchmark.equals(SNAP_TO_EDGE))
+                            return map.cost(map.snapToEdge(rows[i], cols[i], SNAP_DISTANCE));
+                        if (benchmark.equals(CLOSEST_EDGE))
+                            return map.cost(map.getClosestEdge(rows[i], cols[i]));
+                        return extractPath(map, rows[i], cols[i], seedRow, seedCol);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Follows the parent pointers from a pixel back to the seed, as cooling
+     * a boundary does.
+     *
+     * @return the number of nodes on the path
+     */
+    static long extractPath(CostMap map, int row, int col, int seedRow, int seedCol) {
+        int seed = map.index(seedRow, seedCol);
+        int n = map.index(row, col);
+        long length = 0;
+        while (n != seed && map.parent(n) != CostMap.NONE) {
+            length++;
+            n = map.parent(n);
+        }
+        return length;
+    }
+
+    private static ImageBuffer costImage(CvMat gray) {
+        return ImageBuffer.wrap(Features.costImage(gray));
+    }
+
+    /** @return the sizes preceded by a one megapixel base size */
+    private static int[] withBase(int[] sizes) {
+        int[] all = new int[sizes.length + 1];
+        all[0] = 1;
+        System.arraycopy(sizes, 0, all, 1, sizes.length);
+        return all;
+    }
+}
@@ -0,0 +1,41 @@
+package livewire.bench;
+
+import livewire.CostMap;
+import livewire.ImageBuffer;
+
+
+/**
+ * The Engine of the application: a CostMap.
+ *
+ * @author James Gomez
+ */
+public class CostMapEngine implements Engine
+{
+    private CostMap map;
+    private ImageBuffer image;
+
+    @Override
+    public String name() {
+        return "costmap";
+    }
+
+    @Override
+    public void expand(ImageBuffer costs, int row, int col) {
+        if (map == null || image != costs) {
+            map = new CostMap(costs);
+            image = costs;
+        }
+        map.addSeed(row, col);
+    }
+
+    @Override
+    public int cost(int row, int col) {
+        return map.cost(map.index(row, col));
+    }
+
+    @Override
+    public int parent(int row, int col) {
+        //the map's linear indices are the engines' parent encoding, NONE included
+        return map.parent(map.index(row, col));
+    }
+}
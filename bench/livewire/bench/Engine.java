@@ -0,0 +1,29 @@
+package livewire.bench;
+
+import livewire.ImageBuffer;
+
+
+/**
+ * A cost expansion engine under test: expands an 8-bit local cost image from
+ * a seed and exposes the resulting cumulative costs and parent pointers by
+ * pixel.
+ *
+ * @author James Gomez
+ */
+public interface Engine
+{
+    /** @return the name the engine is reported and baselined under */
+    String name();
+
+    /** Expands the whole image from the seed at (row, col) */
+    void expand(ImageBuffer costs, int row, int col);
+
+    /** @return the cumulative cost of the pixel after the last expand */
+    int cost(int row, int col);
+
+    /**
+     * @return the pixel (row * cols + col) the given pixel's path continues
+     * to, or -1 for the seed
+     */
+    int parent(int row, int col);
+}
@@ -0,0 +1,621 @@
+package livewire.bench;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import livewire.Boundary;
+import livewire.FeatureCache;
+import livewire.Features;
+import livewire.ImageBuffer;
+import livewire.LivewireEngine;
+import livewire.SessionManager;
+import livewire.SessionSnapshot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+
+/**
+ * Checks every engine against the reference engine and against a stored
+ * timing baseline. Each engine expands the res/ sample cost images and
+ * randomised synthetic cost fields from several seeds; for every pixel its
+ * cumulative cost must equal the reference cost, and its parent pointers must
+ * form a path to the seed along which each step adds the pixel's local cost,
+ * diagonals scaled as the reference scales them. Neither property makes the
+ * paths shortest: the reference keeps the original expansion's quirks, and
+ * the check only proves that an engine reproduces them with consistent
+ * parents. A synthetic image 40000 pixels wide, past
+ * the 32767 columns that 16-bit coordinates could address, is checked the
+ * same way, and a LivewireEngine must trace a boundary across it.
+ *
+ * <p>A session saved by SessionSnapshot must resume with the same boundary
+ * and live-wires, and damaged snapshots must be refused. A SessionManager
+ * short of memory must evict a session and rebuild it, unchanged, when it is
+ * next used. A FeatureCache must return the cost image it stored, and miss
+ * once the feature parameters change.</p>
+ *
+ * <p>The fastest expansion of each engine on each input is reported and
+ * compared with the baseline file, if given; an engine slower than its
+ * baseline by more than the threshold fails. The tool exits with status 1 if
+ * any check failed, so it can run as an automated test.</p>
+ *
+ * <pre>
+ * USAGE: EngineCheck [options] [image ...]
+ *   -e names           engines to check (default all)
+ *   -n count           randomised cost fields (default 20)
+ *   --seeds count      seeds per input (default 3)
+ *   --synthetic        skip the image files, which need OpenCV
+ *   --baseline file    compare timings with a stored baseline
+ *   --save-baseline    write this run's timings to the baseline file
+ *   --threshold 0.5    the allowed slowdown against the baseline
+ * </pre>
+ *
+ * @author James Gomez
+ */
+public class EngineCheck
+{
+    /** timings faster than this are too noisy to compare with a baseline */
+    private static final long MIN_BASELINE_NANOS = 10000000;
+    /** untimed expansions run by each engine before checking, to warm up the JIT */
+    private static final int WARMUP = 10;
+    private static final float RAD2 = 1.41421356f;
+    /** the width of the wide synthetic inputs, more than a short can hold */
+    private static final int WIDE_COLS = 40000;
+    /** a memory limit that forces the wide trace's expansion to downsample */
+    private static final long DOWNSAMPLED_LIMIT = 1 << 20;
+    /** seeds a session, and lists its live-wires (see paths) */
+    private static final SessionManager.Operation<int[]> SEED_AND_PATHS =
+            new SessionManager.Operation<int[]>()
+            {
+                @Override
+                public int[] run(LivewireEngine engine) {
+                    engine.seed(engine.cols() / 3, engine.rows() / 2);
+                    return paths(engine);
+                }
+            };
+    private static final SessionManager.Operation<int[]> PATHS =
+            new SessionManager.Operation<int[]>()
+            {
+                @Override
+                public int[] run(LivewireEngine engine) {
+                    return paths(engine);
+                }
+            };
+
+    /** @return a new instance of every engine, the reference first */
+    public static List<Engine> engines() {
+        List<Engine> engines = new ArrayList<Engine>();
+        engines.add(new ReferenceEngine());
+        engines.add(new CostMapEngine());
+        return engines;
+    }
+
+    private final List<Engine> engines;
+    private final Engine reference = new ReferenceEngine();
+    private final Properties baseline = new Properties();
+    private final Properties timings = new Properties();
+    private double threshold = 0.5;
+    private int seeds = 3;
+    private int failures;
+
+    public EngineCheck(List<Engine> engines) {
+        this.engines = engines;
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> names = null;
+        int fields = 20;
+        int seeds = 3;
+        boolean synthetic = false;
+        File baselineFile = null;
+        boolean save = false;
+        double threshold = 0.5;
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-e")) names = Harness.parseNames(args[++i]);
+            else if (args[i].equals("-n")) fields = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--seeds")) seeds = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--synthetic")) synthetic = true;
+            else if (args[i].equals("--baseline")) baselineFile = new File(args[++i]);
+            else if (args[i].equals("--save-baseline")) save = true;
+            else if (args[i].equals("--threshold")) threshold = Double.parseDouble(args[++i]);
+            else paths.add(args[i]);
+        }
+
+        List<Engine> engines = new ArrayList<Engine>();
+        for (Engine e : engines())
+            if (names == null || names.contains(e.name())) engines.add(e);
+        EngineCheck check = new EngineCheck(engines);
+        check.seeds = seeds;
+        check.threshold = threshold;
+        if (baselineFile != null && baselineFile.isFile() && !save)
+            check.loadBaseline(baselineFile);
+        check.warmUp();
+
+        if (!synthetic) {
+            if (paths.isEmpty()) paths = BenchImages.samples("res");
+            for (String path : paths) {
+                CvMat gray = BenchImages.loadGray(path);
+                check.run(BenchImages.describe(path, gray),
+                        ImageBuffer.wrap(Features.costImage(gray)));
+            }
+        }
+        Random random = new Random(7);
+        for (int i = 0; i < fields; i++) {
+            int kind = i % 4;
+            int rows = 1 + random.nextInt(300);
+            int cols = 1 + random.nextInt(300);
+            check.run(BenchImages.describe("random" + i, rows, cols),
+                    randomField(rows, cols, kind, random.nextLong()));
+        }
+
+        check.run(BenchImages.describe("wide", 8, WIDE_COLS),
+                randomField(8, WIDE_COLS, 1, WIDE_COLS));
+        check.traceWide(Long.MAX_VALUE);
+        check.traceWide(DOWNSAMPLED_LIMIT);
+        check.checkSnapshot();
+        check.checkSessions();
+        check.checkFeatureCache();
+
+        if (baselineFile != null && save) {
+            check.saveBaseline(baselineFile);
+            System.out.println("Saved baseline " + baselineFile);
+        }
+        System.out.println(check.failures == 0 ? "PASSED" : "FAILED: " + check.failures);
+        if (check.failures > 0) System.exit(1);
+    }
+
+    /** Runs every engine on a mid-sized random field so timings start warm */
+    public void warmUp() {
+        ImageBuffer field = randomField(256, 256, 0, 1);
+        for (int i = 0; i < WARMUP; i++) {
+            reference.expand(field, 128, 128);
+            for (Engine engine : engines)
+                engine.expand(field, 128, 128);
+        }
+    }
+
+    /** Checks and times every engine on one cost image */
+    public void run(String name, ImageBuffer costs) {
+        Random random = new Random(name.hashCode());
+        long[] best = new long[engines.size()];
+        Arrays.fill(best, Long.MAX_VALUE);
+        List<String> errors = new ArrayList<String>();
+        for (int s = 0; s < seeds; s++) {
+            int row = random.nextInt(costs.rows());
+            int col = random.nextInt(costs.cols());
+            reference.expand(costs, row, col);
+            for (int e = 0; e < engines.size(); e++) {
+                Engine engine = engines.get(e);
+                long start = System.nanoTime();
+                engine.expand(costs, row, col);
+                best[e] = Math.min(best[e], System.nanoTime() - start);
+                String error = compare(engine, costs, row, col);
+                if (error != null)
+                    errors.add(engine.name() + " seed (" + row + "," + col + "): " + error);
+            }
+        }
+
+        for (int e = 0; e < engines.size(); e++) {
+            String engine = engines.get(e).name();
+            String key = engine + " " + name;
+            timings.setProperty(key, Long.toString(best[e]));
+            String status = "ok";
+            String base = baseline.getProperty(key);
+            if (base != null) {
+                long limit = (long) (Long.parseLong(base) * (1 + threshold));
+                if (best[e] > limit && best[e] > MIN_BASELINE_NANOS) {
+                    status = String.format(Locale.ROOT, "SLOWER than baseline %.3f ms",
+                            Long.parseLong(base) / 1e6);
+                    failures++;
+                }
+            }
+            System.out.println(String.format(Locale.ROOT, "%-28s %-12s %10.3f ms  %s",
+                    name, engine, best[e] / 1e6, status));
+        }
+        for (String error : errors) {
+            System.out.println("  MISMATCH " + error);
+            failures++;
+        }
+    }
+
+    /**
+     * Traces a boundary with a LivewireEngine around a rectangle of low cost
+     * that spans column 32767 of a wide image. The boundary must close, keep
+     * to the rectangle, reach both of its sides and be 8-connected. Under a
+     * memory limit too small for the full expansion, the engine must
+     * downsample.
+     */
+    public void traceWide(long memoryLimit) {
+        int rows = 64;
+        int top = 16;
+        int bottom = 47;
+        int left = 30000;
+        int right = 36000;
+        ImageBuffer field = ImageBuffer.allocate(rows, WIDE_COLS, opencv_core.CV_8U);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < WIDE_COLS; j++) {
+                boolean outline = (i == top || i == bottom) && j >= left && j <= right ||
+                        (j == left || j == right) && i >= top && i <= bottom;
+                field.put(i, j, outline ? 1 : 200);
+            }
+        }
+
+        long start = System.nanoTime();
+        LivewireEngine engine = new LivewireEngine(field);
+        engine.setMemoryLimit(memoryLimit);
+        engine.seed(left, top);
+        engine.cool(right, top);
+        engine.cool(right, bottom);
+        engine.cool(left, bottom);
+        engine.close();
+        long elapsed = System.nanoTime() - start;
+
+        Boundary boundary = engine.boundary();
+        int minCol = Integer.MAX_VALUE;
+        int maxCol = -1;
+        String error = engine.isClosed() ? null : "the boundary did not close";
+        if (error == null && memoryLimit < LivewireEngine.expansionBytes(rows, WIDE_COLS, Long.MAX_VALUE) &&
+                engine.downsampling() == 1)
+            error = "the engine did not downsample under a " + memoryLimit + " byte limit";
+        for (int i = 0; i < boundary.size() && error == null; i++) {
+            if (field.get(boundary.row(i), boundary.col(i)) != 1)
+                error = "boundary point " + i + " (" + boundary.row(i) + "," +
+                        boundary.col(i) + ") is off the rectangle";
+            else if (i > 0 && (Math.abs(boundary.row(i) - boundary.row(i - 1)) > 1 ||
+                    Math.abs(boundary.col(i) - boundary.col(i - 1)) > 1))
+                error = "boundary points " + (i - 1) + " and " + i + " are not adjacent";
+            minCol = Math.min(minCol, boundary.col(i));
+            maxCol = Math.max(maxCol, boundary.col(i));
+        }
+        if (error == null && (minCol != left || maxCol != right))
+            error = "the boundary spans columns " + minCol + " to " + maxCol +
+                    ", not " + left + " to " + right;
+
+        System.out.println(String.format(Locale.ROOT, "%-28s %-12s %10.3f ms  %s",
+                BenchImages.describe(engine.downsampling() > 1 ? "wide trace /" +
+                        engine.downsampling() : "wide trace", rows, WIDE_COLS), "engine", elapsed / 1e6,
+                error == null ? "ok, " + boundary.size() + " points" : "FAILED"));
+        if (error != null) {
+            System.out.println("  MISMATCH engine: " + error);
+            failures++;
+        }
+    }
+
+    /**
+     * Saves a session with SessionSnapshot and resumes it. The boundary, the
+     * seed and the live-wire from every tenth pixel must come back unchanged.
+     * A snapshot with a damaged header, or with a parent pointing at its own
+     * pixel, must be refused.
+     */
+    public void checkSnapshot() throws IOException {
+        int rows = 120;
+        int cols = 160;
+        ImageBuffer field = randomField(rows, cols, 0, 47);
+        LivewireEngine engine = new LivewireEngine(field);
+        engine.seed(20, 30);
+        engine.cool(100, 60);
+        engine.cool(140, 110);
+
+        File file = File.createTempFile("enginecheck", ".lws");
+        String error;
+        long start = System.nanoTime();
+        try {
+            SessionSnapshot.save(engine, file);
+            LivewireEngine resumed = SessionSnapshot.load(file);
+            error = compareSessions(engine, resumed);
+            //the header, then the boundary and the cost image come before the parents
+            long parents = 64 + 8L * engine.boundary().size() + (long) rows * cols;
+            int pixel = engine.seed() == 0 ? 1 : 0;
+            if (error == null) error = refused(file, 0, 0, "a damaged header");
+            if (error == null) error = refused(file, parents + pixel, 5, "a parent pointing at its pixel");
+        }
+        finally {
+            file.delete();
+        }
+        report(BenchImages.describe("snapshot", rows, cols), System.nanoTime() - start, error,
+                engine.boundary().size() + " points");
+    }
+
+    /**
+     * Opens two sessions in a SessionManager that can only hold one expansion.
+     * Seeding the second must evict the first; using the first again must
+     * rebuild it with the same live-wires. The cost images come from a
+     * FeatureCache, so no image is decoded.
+     */
+    public void checkSessions() throws IOException {
+        int rows = 120;
+        int cols = 160;
+        File dir = tempDir();
+        long start = System.nanoTime();
+        String error = null;
+        SessionManager sessions = null;
+        try {
+            FeatureCache cache = new FeatureCache(dir);
+            String[] images = new String[2];
+            for (int i = 0; i < images.length; i++) {
+                File image = new File(dir, "image" + i + ".png");
+                OutputStream out = new FileOutputStream(image);
+                try {
+                    out.write(i);
+                }
+                finally {
+                    out.close();
+                }
+                cache.put(cache.key(image), randomField(rows, cols, i, 53 + i));
+                images[i] = image.getPath();
+            }
+
+            //one cost image and expansion fit, two do not
+            long capacity = (long) rows * cols + LivewireEngine.expansionBytes(rows, cols, Long.MAX_VALUE) +
+                    (long) rows * cols * 3 / 2;
+            sessions = new SessionManager(capacity, 2);
+            sessions.setFeatureCache(cache);
+            String first = sessions.open(images[0]);
+            int[] before = sessions.run(first, SEED_AND_PATHS);
+            String second = sessions.open(images[1]);
+            sessions.run(second, SEED_AND_PATHS);
+            boolean evicted = !sessions.run(first, new SessionManager.Operation<Boolean>()
+            {
+                @Override
+                public Boolean run(LivewireEngine engine) {
+                    return engine.isResident();
+                }
+            });
+            int[] after = sessions.run(first, PATHS);
+            if (!evicted || sessions.evictions() == 0)
+                error = "the first session was not evicted";
+            else if (!Arrays.equals(before, after))
+                error = "the live-wires differ after the session was rebuilt";
+        }
+        finally {
+            if (sessions != null) sessions.shutdown();
+            delete(dir);
+        }
+        report(BenchImages.describe("session eviction", rows, cols), System.nanoTime() - start,
+                error, sessions.evictions() + " evictions");
+    }
+
+    /**
+     * Stores a cost image in a FeatureCache and reads it back; every pixel
+     * must come back unchanged. The same image under other feature parameters
+     * must have another key and miss.
+     */
+    public void checkFeatureCache() throws IOException {
+        int rows = 120;
+        int cols = 160;
+        ImageBuffer field = randomField(rows, cols, 2, 59);
+        File dir = tempDir();
+        long start = System.nanoTime();
+        String error = null;
+        try {
+            FeatureCache cache = new FeatureCache(dir);
+            File image = new File(dir, "image.png");
+            OutputStream out = new FileOutputStream(image);
+            try {
+                out.write(59);
+            }
+            finally {
+                out.close();
+            }
+            String key = cache.key(image);
+            cache.put(key, field);
+            ImageBuffer costs = cache.get(key);
+            String changed = cache.key(image, Features.PARAMETERS + " changed");
+            if (costs == null)
+                error = "the stored cost image was not found";
+            else if (costs.rows() != rows || costs.cols() != cols || costs.type() != field.type())
+                error = "the cost image came back " + costs.cols() + "x" + costs.rows() + " of type " + costs.type();
+            else if (changed.equals(key))
+                error = "the key does not depend on the feature parameters";
+            else if (cache.get(changed) != null)
+                error = "changed feature parameters did not miss";
+            for (int r = 0; r < rows && error == null; r++) {
+                for (int c = 0; c < cols && error == null; c++) {
+                    if (costs.get(r, c) != field.get(r, c))
+                        error = "pixel (" + c + "," + r + ") differs";
+                }
+            }
+        }
+        finally {
+            delete(dir);
+        }
+        report(BenchImages.describe("feature cache", rows, cols), System.nanoTime() - start,
+                error, "hit and miss");
+    }
+
+    /** @return a new empty directory for temporary files */
+    private static File tempDir() throws IOException {
+        File dir = File.createTempFile("enginecheck", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("could not create " + dir);
+        return dir;
+    }
+
+    /** Deletes a directory of files */
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * @return a description of the first difference between two sessions on
+     * the same cost image, or null if none
+     */
+    private static String compareSessions(LivewireEngine expected, LivewireEngine actual) {
+        if (actual.seed() != expected.seed() || actual.isClosed() != expected.isClosed())
+            return "the seed or the closed state differs";
+        Boundary a = actual.boundary();
+        Boundary b = expected.boundary();
+        if (a.size() != b.size())
+            return "the boundary has " + a.size() + " points, expected " + b.size();
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i))
+                return "boundary point " + i + " differs";
+        }
+        if (!Arrays.equals(paths(actual), paths(expected)))
+            return "the live-wires differ";
+        return null;
+    }
+
+    /** @return the live-wires from every tenth pixel of each tenth row, one after another */
+    static int[] paths(LivewireEngine engine) {
+        int[] paths = new int[1024];
+        int length = 0;
+        for (int y = 0; y < engine.rows(); y += 10) {
+            for (int x = 0; x < engine.cols(); x += 10) {
+                for (int n = engine.path(x, y); n >= 0; n = engine.parent(n)) {
+                    if (length == paths.length) paths = Arrays.copyOf(paths, 2 * length);
+                    paths[length++] = n;
+                }
+            }
+        }
+        return Arrays.copyOf(paths, length);
+    }
+
+    /**
+     * Writes a byte into a snapshot file and tries to resume it, then restores
+     * the byte
+     *
+     * @return a description of the failure if the snapshot was accepted
+     */
+    private static String refused(File file, long position, int value, String what)
+            throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int original = raf.read();
+            raf.seek(position);
+            raf.write(value);
+            try {
+                SessionSnapshot.load(file);
+                return "a snapshot with " + what + " was accepted";
+            }
+            catch (IOException e) {
+                return null;
+            }
+            finally {
+                raf.seek(position);
+                raf.write(original);
+            }
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /** Prints a check's result and counts it if it failed */
+    private void report(String name, long nanos, String error, String detail) {
+        System.out.println(String.format(Locale.ROOT, "%-28s %-12s %10.3f ms  %s",
+                name, "engine", nanos / 1e6, error == null ? "ok, " + detail : "FAILED"));
+        if (error != null) {
+            System.out.println("  MISMATCH engine: " + error);
+            failures++;
+        }
+    }
+
+    /**
+     * Compares an engine's expansion with the reference expansion from the
+     * same seed.
+     *
+     * @return a description of the first difference, or null if none
+     */
+    private String compare(Engine engine, ImageBuffer costs, int seedRow, int seedCol) {
+        int rows = costs.rows();
+        int cols = costs.cols();
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                if (engine.cost(i, j) != reference.cost(i, j))
+                    return "cost at (" + i + "," + j + ") is " + engine.cost(i, j) +
+                            ", expected " + reference.cost(i, j);
+            }
+        }
+
+        //every path must reach the seed, each step adding the pixel's local cost
+        byte[] state = new byte[rows * cols];
+        int seed = seedRow * cols + seedCol;
+        state[seed] = 2;
+        int[] stack = new int[16];
+        for (int start = 0; start < rows * cols; start++) {
+            int depth = 0;
+            int p = start;
+            while (state[p] == 0) {
+                state[p] = 1;
+                if (depth == stack.length) stack = Arrays.copyOf(stack, 2 * depth);
+                stack[depth++] = p;
+                int q = engine.parent(p / cols, p % cols);
+                if (q < 0 || Math.abs(q / cols - p / cols) > 1 || Math.abs(q % cols - p % cols) > 1)
+                    return "pixel (" + p / cols + "," + p % cols + ") has no valid parent";
+                if (state[q] == 1)
+                    return "parent pointers loop at (" + q / cols + "," + q % cols + ")";
+                int local = costs.get(p / cols, p % cols);
+                boolean diagonal = q / cols != p / cols && q % cols != p % cols;
+                int step = diagonal ? (int) (RAD2 * local) : local;
+                if (engine.cost(p / cols, p % cols) != engine.cost(q / cols, q % cols) + step)
+                    return "cost at (" + p / cols + "," + p % cols + ") does not follow from its parent";
+                p = q;
+            }
+            while (depth > 0)
+                state[stack[--depth]] = 2;
+        }
+        return null;
+    }
+
+    private void loadBaseline(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            baseline.load(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void saveBaseline(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            timings.store(out, "Fastest expansion in nanoseconds per engine and input");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates a random 8-bit cost field of one of four kinds: uniform noise,
+     * noise with many zero-cost pixels, a few distinct levels (many ties) and a
+     * smooth ramp.
+     */
+    static ImageBuffer randomField(int rows, int cols, int kind, long seed) {
+        Random random = new Random(seed);
+        ImageBuffer field = ImageBuffer.allocate(rows, cols, opencv_core.CV_8U);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                int value;
+                switch (kind) {
+                    case 0: value = random.nextInt(256); break;
+                    case 1: value = random.nextInt(3) == 0 ? 0 : random.nextInt(256); break;
+                    case 2: value = 64 * random.nextInt(4); break;
+                    default: value = (i + j) * 255 / Math.max(rows + cols - 2, 1); break;
+                }
+                field.put(i, j, value);
+            }
+        }
+        return field;
+    }
+}
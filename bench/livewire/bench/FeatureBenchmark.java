@@ -0,0 +1,161 @@
+package livewire.bench;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_highgui;
+import livewire.CostMap;
+import livewire.FeatureCache;
+import livewire.Features;
+import livewire.ImageBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Benchmarks the feature extraction that runs before the first seed can be
+ * placed: each stage (gradient, Canny edges, inverse weighted sum) on its
+ * own, the whole cost image build, and the time to first seed, which also
+ * creates the CostMap and expands it from the image centre. The cached time
+ * to first seed maps the cost image from a FeatureCache entry instead, hashing
+ * the image file as a reopened image would. Each thread works on its own copy
+ * of the grayscale image.
+ *
+ * <pre>
+ * USAGE: FeatureBenchmark [options] [image ...]
+ *   -t 1,2,4      thread counts (default 1)
+ *   -s 4,16,50    megapixels of upscaled variants of the last image
+ *   -b names      benchmarks to run (default all)
+ *   -w n, -i n    warmup and measurement iterations (default 3, 5)
+ *   -r millis     time per iteration (default 1000)
+ *   --csv file    append the results to a CSV history
+ *   --label text  label the results in the history, e.g. with a revision
+ * </pre>
+ *
+ * Without image arguments the sample images in res/ are used.
+ *
+ * @author James Gomez
+ */
+public class FeatureBenchmark
+{
+    public static final String GRADIENT = "gradient";
+    public static final String EDGES = "edges";
+    public static final String SUM = "inverseWeightedSum";
+    public static final String COST_IMAGE = "costImage";
+    public static final String FIRST_SEED = "timeToFirstSeed";
+    public static final String CACHED_FIRST_SEED = "cachedTimeToFirstSeed";
+    private static final List<String> ALL =
+            Arrays.asList(GRADIENT, EDGES, SUM, COST_IMAGE, FIRST_SEED, CACHED_FIRST_SEED);
+
+    public static void main(String[] args) throws Exception {
+        Harness harness = new Harness();
+        int[] threads = {1};
+        int[] sizes = {4, 16, 50};
+        List<String> benchmarks = ALL;
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-t")) threads = Harness.parseInts(args[++i]);
+            else if (args[i].equals("-s")) sizes = Harness.parseInts(args[++i]);
+            else if (args[i].equals("-b")) benchmarks = Harness.parseNames(args[++i]);
+            else {
+                int last = harness.parseOption(args, i);
+                if (last >= 0) i = last;
+                else paths.add(args[i]);
+            }
+        }
+
+        Harness.printHeader();
+        if (paths.isEmpty()) paths = BenchImages.samples("res");
+        CvMat last = null;
+        for (String path : paths) {
+            last = BenchImages.loadGray(path);
+            run(harness, benchmarks, threads, BenchImages.describe(path, last), last);
+        }
+        if (last != null) {
+            for (int mp : sizes) {
+                CvMat scaled = BenchImages.upscale(last, mp);
+                String name = BenchImages.describe(paths.get(paths.size() - 1), scaled) +
+                        " (" + mp + "MP)";
+                run(harness, benchmarks, threads, name, scaled);
+            }
+        }
+    }
+
+    /** Runs the selected benchmarks on one image at each thread count */
+    static void run(Harness harness, List<String> benchmarks, int[] threads,
+            String param, CvMat image) throws Exception
+    {
+        for (String benchmark : benchmarks) {
+            for (int t : threads) {
+                harness.report(harness.run(benchmark, param, t, fixture(benchmark, image)));
+            }
+        }
+    }
+
+    /** @return a Fixture creating the named operation over the given image */
+    static Harness.Fixture fixture(final String benchmark, final CvMat image) {
+        if (!ALL.contains(benchmark))
+            throw new IllegalArgumentException("Unknown benchmark " + benchmark +
+                    ", expected one of " + ALL);
+
+        return new Harness.Fixture()
+        {
+            @Override
+            public Harness.Operation create(int thread) throws IOException {
+                final CvMat gray = opencv_core.cvCloneMat(image);
+                //the sum stage is measured on its own inputs
+                final Features.GradStruct gradient =
+                        benchmark.equals(SUM) ? Features.getGradient(gray) : null;
+                final CvMat edges = benchmark.equals(SUM) ? Features.getEdges(gray) : null;
+                //the cached stage reopens an image file whose entry is cached
+                final File file = benchmark.equals(CACHED_FIRST_SEED) ? cachedImage(gray) : null;
+                final FeatureCache cache =
+                        file == null ? null : new FeatureCache(file.getParentFile());
+
+                return new Harness.Operation()
+                {
+                    @Override
+                    public long run() throws IOException {
+                        if (benchmark.equals(GRADIENT))
+                            return Features.getGradient(gray).mag.rows();
+                        if (benchmark.equals(EDGES))
+                            return Features.getEdges(gray).rows();
+                        if (benchmark.equals(SUM))
+                            return Features.getInverseWeightedSum(gradient, edges,
+                                    Features.GRADIENT_WEIGHT, Features.EDGE_WEIGHT,
+                                    Features.DIRECTION_WEIGHT).rows();
+                        if (benchmark.equals(COST_IMAGE))
+                            return Features.costImage(gray).rows();
+
+                        CostMap map = new CostMap(file != null
+                                ? cache.costs(file, null)
+                                : ImageBuffer.wrap(Features.costImage(gray)));
+                        map.addSeed(gray.rows() / 2, gray.cols() / 2);
+                        return map.cost(0);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Saves an image to a temporary file and caches its cost image; both are
+     * deleted on exit
+     */
+    static File cachedImage(CvMat gray) throws IOException {
+        File dir = Files.createTempDirectory("featurecache").toFile();
+        File file = new File(dir, "image.png");
+        opencv_highgui.cvSaveImage(file.getPath(), gray);
+        FeatureCache cache = new FeatureCache(dir);
+        cache.costs(file, gray);
+        //deleted in reverse order of registration, so the directory goes last
+        dir.deleteOnExit();
+        file.deleteOnExit();
+        cache.file(cache.key(file)).deleteOnExit();
+        return file;
+    }
+}
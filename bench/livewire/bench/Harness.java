@@ -0,0 +1,315 @@
+package livewire.bench;
+
+import livewire.Metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+
+
+/**
+ * A small benchmark harness in the manner of JMH. Each benchmark is run for
+ * a number of timed warmup iterations, whose results are discarded, and then
+ * for a number of timed measurement iterations. Within an iteration every
+ * thread calls its own Operation back to back until the iteration time is up;
+ * the threads start each iteration together.
+ *
+ * <p>For every benchmark the harness reports the throughput with its standard
+ * deviation across iterations, the mean time per operation, the bytes
+ * allocated per operation, as counted by the JVM for each thread, and the
+ * collector activity during measurement. Results can also be appended to a
+ * CSV file, so that runs over time form a history to spot regressions in.</p>
+ *
+ * <p>Unlike JMH, the harness does not fork: every benchmark runs in the same
+ * JVM, so JIT profiles and heap state carry over from one benchmark to the
+ * next and their order can change their results. Nor does it guard against
+ * dead code elimination beyond summing each Operation's result into a
+ * volatile field; work that does not feed into the result may be optimized
+ * away. Compare results from runs of the same benchmarks in the same order,
+ * and treat small differences with suspicion.</p>
+ *
+ * @author James Gomez
+ */
+public class Harness
+{
+    /** One benchmarked operation, owning all the state it mutates */
+    public interface Operation
+    {
+        /** @return a value depending on the work done, so it is not optimized away */
+        long run() throws Exception;
+    }
+
+    /** Creates the Operation run by each benchmark thread */
+    public interface Fixture
+    {
+        Operation create(int thread) throws Exception;
+    }
+
+    /** The measured results of one benchmark */
+    public static class Result
+    {
+        public String benchmark;
+        public String param;
+        public int threads;
+        public long operations;
+        public double opsPerSecond;
+        public double opsError;
+        public double nanosPerOp;
+        public double bytesPerOp;
+        public long gcCount;
+        public long gcMillis;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, ROW_FORMAT, benchmark, param,
+                    threads, opsPerSecond, opsError, nanosPerOp / 1000,
+                    bytesPerOp, gcCount, gcMillis);
+        }
+
+        /** @return this result as a CSV row following CSV_HEADER */
+        public String toCsv(String date, String label) {
+            return String.format(Locale.ROOT, CSV_FORMAT, date, csv(label),
+                    csv(benchmark), csv(param), threads, opsPerSecond, opsError,
+                    nanosPerOp / 1000, bytesPerOp, gcCount, gcMillis);
+        }
+    }
+
+    /** The columns of the CSV history */
+    public static final String CSV_HEADER =
+            "date,label,benchmark,param,threads,ops/s,error,us/op,B/op,gc.count,gc.ms";
+    private static final String CSV_FORMAT = "%s,%s,%s,%s,%d,%.3f,%.3f,%.3f,%.1f,%d,%d";
+
+    private static final String HEADER_FORMAT =
+            "%-28s %-22s %7s %14s %12s %14s %14s %8s %8s%n";
+    private static final String ROW_FORMAT =
+            "%-28s %-22s %7d %14.3f %12.3f %14.3f %14.1f %8d %8d";
+
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+    /** folds the operations' results together so the JIT cannot drop them */
+    private volatile long sink;
+    /** the CSV history results are appended to, if any */
+    private File history;
+    private String label = "";
+    private final String date =
+            new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.ROOT).format(new Date());
+
+    public void setWarmupIterations(int warmupIterations) {
+        this.warmupIterations = warmupIterations;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public void setIterationMillis(long iterationMillis) {
+        this.iterationMillis = iterationMillis;
+    }
+
+    /**
+     * Parses the options common to all benchmark tools: -w warmup
+     * iterations, -i measurement iterations, -r milliseconds per iteration,
+     * --csv history file and --label run label.
+     *
+     * @return the index of the option's last argument, or -1 if args[i] is
+     * not a harness option
+     */
+    public int parseOption(String[] args, int i) {
+        if (args[i].equals("-w")) setWarmupIterations(Integer.parseInt(args[++i]));
+        else if (args[i].equals("-i")) setIterations(Integer.parseInt(args[++i]));
+        else if (args[i].equals("-r")) setIterationMillis(Long.parseLong(args[++i]));
+        else if (args[i].equals("--csv")) history = new File(args[++i]);
+        else if (args[i].equals("--label")) label = args[++i];
+        else return -1;
+        return i;
+    }
+
+    /** Prints a result and appends it to the CSV history, if one is set */
+    public void report(Result result) throws IOException {
+        System.out.println(result);
+        if (history == null) return;
+        boolean created = !history.exists() || history.length() == 0;
+        PrintWriter out = new PrintWriter(new FileWriter(history, true));
+        try {
+            if (created) out.println(CSV_HEADER);
+            out.println(result.toCsv(date, label));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /** Prints the column headings of the rows printed by Result.toString */
+    public static void printHeader() {
+        System.out.printf(Locale.ROOT, HEADER_FORMAT, "Benchmark", "Param",
+                "Threads", "ops/s", "+-", "us/op", "B/op", "gc.count", "gc.ms");
+    }
+
+    /**
+     * Runs a benchmark on the given number of threads
+     *
+     * @param benchmark the benchmark name
+     * @param param     a description of the benchmark's parameters
+     * @param threads   the number of threads running operations at once
+     * @param fixture   creates one Operation per thread
+     */
+    public Result run(String benchmark, String param, int threads, Fixture fixture)
+            throws Exception
+    {
+        Operation[] operations = new Operation[threads];
+        for (int t = 0; t < threads; t++)
+            operations[t] = fixture.create(t);
+
+        for (int i = 0; i < warmupIterations; i++)
+            iterate(operations);
+
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        double[] throughput = new double[iterations];
+        long totalOps = 0;
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            Worker[] workers = iterate(operations);
+            long ops = 0;
+            long nanos = 0;
+            for (Worker w : workers) {
+                ops += w.ops;
+                nanos = Math.max(nanos, w.nanos);
+                totalBytes += w.bytes;
+            }
+            throughput[i] = ops * 1e9 / nanos;
+            totalOps += ops;
+            totalNanos += nanos;
+        }
+
+        Result r = new Result();
+        r.benchmark = benchmark;
+        r.param = param;
+        r.threads = threads;
+        r.operations = totalOps;
+        r.opsPerSecond = mean(throughput);
+        r.opsError = deviation(throughput, r.opsPerSecond);
+        r.nanosPerOp = (double) totalNanos * threads / totalOps;
+        r.bytesPerOp = (double) totalBytes / totalOps;
+        r.gcCount = gcCount() - gcCount;
+        r.gcMillis = gcMillis() - gcMillis;
+        return r;
+    }
+
+    /** Runs one iteration on all threads and waits for them to finish */
+    private Worker[] iterate(Operation[] operations) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(operations.length);
+        Worker[] workers = new Worker[operations.length];
+        for (int t = 0; t < operations.length; t++) {
+            workers[t] = new Worker(operations[t], start);
+            workers[t].start();
+        }
+        for (Worker w : workers) {
+            w.join();
+            if (w.failure != null)
+                throw new Exception("Benchmark operation failed", w.failure);
+        }
+        return workers;
+    }
+
+    /** Runs an operation repeatedly for one iteration */
+    private class Worker extends Thread
+    {
+        private final Operation operation;
+        private final CyclicBarrier start;
+        long ops;
+        long nanos;
+        long bytes;
+        Throwable failure;
+
+        Worker(Operation operation, CyclicBarrier start) {
+            this.operation = operation;
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long result = 0;
+                start.await();
+                long allocated = Metrics.allocatedBytes();
+                long begin = System.nanoTime();
+                long deadline = begin + iterationMillis * 1000000L;
+                long now;
+                //every iteration runs at least one operation, however slow
+                do {
+                    result += operation.run();
+                    ops++;
+                    now = System.nanoTime();
+                } while (now < deadline);
+                nanos = now - begin;
+                bytes = Math.max(Metrics.allocatedBytes() - allocated, 0);
+                sink += result;
+            }
+            catch (Throwable e) {
+                failure = e;
+            }
+        }
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double v : values) sum += v;
+        return sum / values.length;
+    }
+
+    private static double deviation(double[] values, double mean) {
+        if (values.length < 2) return 0;
+        double sum = 0;
+        for (double v : values) sum += (v - mean) * (v - mean);
+        return Math.sqrt(sum / (values.length - 1));
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(gc.getCollectionCount(), 0);
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(gc.getCollectionTime(), 0);
+        return millis;
+    }
+
+    /** Quotes a CSV field if needed */
+    private static String csv(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0) return field;
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    /** Splits a comma separated list of integers */
+    public static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+
+    /** Splits a comma separated list of names */
+    public static List<String> parseNames(String list) {
+        List<String> names = new ArrayList<String>();
+        for (String name : list.split(","))
+            if (!name.trim().isEmpty()) names.add(name.trim());
+        return names;
+    }
+}
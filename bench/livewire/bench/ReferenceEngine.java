@@ -0,0 +1,126 @@
+package livewire.bench;
+
+import livewire.ImageBuffer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+
+/**
+ * The reference engine: a frozen copy of the original CostMap expansion
+ * (object nodes, hash sets and a PriorityQueue), kept unchanged so that every
+ * other engine can be checked against it as CostMap itself evolves. It
+ * defines the expected costs, including their quirks: a pixel's cumulative
+ * cost is fixed by the first settled neighbour that reaches it, and diagonal
+ * steps scale the pixel's local cost by the square root of two, rounded down.
+ * Because a cost is never lowered once set, the paths it produces are not
+ * always the least cost paths; the reference is the expected result, not an
+ * optimal one.
+ *
+ * @author James Gomez
+ */
+public class ReferenceEngine implements Engine
+{
+    private static final float RAD2 = 1.41421356f;
+
+    private static class Node
+    {
+        int row;
+        int col;
+        int cost;
+        Node parent;
+    }
+
+    private Node[][] costs;
+
+    @Override
+    public String name() {
+        return "reference";
+    }
+
+    @Override
+    public void expand(ImageBuffer image, int row, int col) {
+        costs = new Node[image.rows()][image.cols()];
+        for (int i = 0; i < costs.length; i++) {
+            for (int j = 0; j < costs[0].length; j++) {
+                Node n = new Node();
+                n.row = i;
+                n.col = j;
+                n.cost = image.get(i, j);
+                costs[i][j] = n;
+            }
+        }
+
+        Set<Node> closed = new HashSet<Node>(1000);
+        Set<Node> open = new HashSet<Node>(1000);
+        PriorityQueue<Node> wavefront =
+                new PriorityQueue<Node>(2000, new Comparator<Node>()
+                {
+                    @Override
+                    public int compare(Node a, Node b) {
+                        if (a.cost > b.cost) return 1;
+                        if (a.cost < b.cost) return -1;
+                        return 0;
+                    }
+                });
+
+        Node current = costs[row][col];
+        current.cost = 0;
+        wavefront.add(current);
+        open.add(current);
+        while (!wavefront.isEmpty()) {
+            current = wavefront.poll();
+            open.remove(current);
+            closed.add(current);
+
+            List<Node> neighbors = neighbors(current);
+            for (int i = 0; i < neighbors.size(); i++) {
+                Node n = neighbors.get(i);
+                if (closed.contains(n)) continue;
+
+                int tentativeCost = euclideanAdd(current, n);
+                if (n.parent == null || current.cost + tentativeCost < n.cost) {
+                    n.parent = current;
+                    n.cost = tentativeCost;
+                }
+                if (!open.contains(n)) {
+                    wavefront.add(n);
+                    open.add(n);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int cost(int row, int col) {
+        return costs[row][col].cost;
+    }
+
+    @Override
+    public int parent(int row, int col) {
+        Node parent = costs[row][col].parent;
+        return parent == null ? -1 : parent.row * costs[0].length + parent.col;
+    }
+
+    private List<Node> neighbors(Node n) {
+        List<Node> neighbors = new ArrayList<Node>(8);
+        for (int i = n.row - 1; i <= n.row + 1; i++) {
+            for (int j = n.col - 1; j <= n.col + 1; j++) {
+                if (i == n.row && j == n.col) continue;
+                if (i >= 0 && j >= 0 && i < costs.length && j < costs[0].length)
+                    neighbors.add(costs[i][j]);
+            }
+        }
+        return neighbors;
+    }
+
+    private int euclideanAdd(Node current, Node n) {
+        if (current.row != n.row && current.col != n.col)
+            return current.cost + (int) (RAD2 * costs[n.row][n.col].cost);
+        return current.cost + costs[n.row][n.col].cost;
+    }
+}
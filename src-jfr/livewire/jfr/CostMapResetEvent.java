@@ -0,0 +1,13 @@
+package livewire.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("livewire.CostMapReset")
+@Label("Cost Map Reset")
+@Description("Returning the cost map to its unexpanded state")
+class CostMapResetEvent extends PipelineEvent
+{
+}
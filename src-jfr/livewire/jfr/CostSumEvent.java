@@ -0,0 +1,13 @@
+package livewire.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("livewire.CostSum")
+@Label("Cost Image")
+@Description("Inverse weighted sum of the features")
+class CostSumEvent extends PipelineEvent
+{
+}
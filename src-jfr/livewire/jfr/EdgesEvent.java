@@ -0,0 +1,13 @@
+package livewire.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("livewire.Edges")
+@Label("Edge Features")
+@Description("Blur and Canny edge detection")
+class EdgesEvent extends PipelineEvent
+{
+}
@@ -0,0 +1,13 @@
+package livewire.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("livewire.Expansion")
+@Label("Expansion")
+@Description("Shortest path expansion from a seed point")
+class ExpansionEvent extends PipelineEvent
+{
+}
@@ -0,0 +1,13 @@
+package livewire.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("livewire.Gradient")
+@Label("Gradient Features")
+@Description("Blur, Sobel and gradient direction")
+class GradientEvent extends PipelineEvent
+{
+}
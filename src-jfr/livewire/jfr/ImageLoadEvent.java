@@ -0,0 +1,13 @@
+package livewire.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("livewire.ImageLoad")
+@Label("Image Load")
+@Description("Decoding the image from disk")
+class ImageLoadEvent extends PipelineEvent
+{
+}
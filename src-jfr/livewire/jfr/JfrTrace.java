@@ -0,0 +1,63 @@
+package livewire.jfr;
+
+import livewire.Trace;
+
+
+/**
+ * A Trace that records each pipeline stage as a Java Flight Recorder event.
+ * Loaded reflectively by Trace when JDK 11 or later is running.
+ *
+ * @author James Gomez
+ */
+public class JfrTrace extends Trace
+{
+    /**
+     * one event of each stage, never committed, that tells whether the
+     * stage is being recorded without allocating a new event
+     */
+    private final PipelineEvent[] probes;
+
+    public JfrTrace() {
+        Stage[] stages = Stage.values();
+        probes = new PipelineEvent[stages.length];
+        for (Stage stage : stages)
+            probes[stage.ordinal()] = create(stage);
+    }
+
+    @Override
+    public Object begin(Stage stage) {
+        if (!probes[stage.ordinal()].isEnabled()) return null;
+        PipelineEvent event = create(stage);
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void end(Object token, int rows, int cols, long nodes) {
+        if (token == null) return;
+        PipelineEvent event = (PipelineEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.rows = rows;
+            event.cols = cols;
+            event.nodes = nodes;
+            event.commit();
+        }
+    }
+
+    private static PipelineEvent create(Stage stage) {
+        switch (stage) {
+            case IMAGE_LOAD: return new ImageLoadEvent();
+            case GRADIENT: return new GradientEvent();
+            case EDGES: return new EdgesEvent();
+            case COST_SUM: return new CostSumEvent();
+            case COSTMAP_RESET: return new CostMapResetEvent();
+            case EXPANSION: return new ExpansionEvent();
+            case PATH_EXTRACTION: return new PathExtractionEvent();
+            case RENDER: return new RenderEvent();
+            case SEGMENT_EXTRACTION: return new SegmentExtractionEvent();
+            case SEGMENT_SAVE: return new SegmentSaveEvent();
+            default: throw new IllegalArgumentException("Unknown stage " + stage);
+        }
+    }
+}
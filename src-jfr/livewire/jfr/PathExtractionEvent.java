@@ -0,0 +1,13 @@
+package livewire.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("livewire.PathExtraction")
+@Label("Path Extraction")
+@Description("Following parent pointers to cool a boundary")
+class PathExtractionEvent extends PipelineEvent
+{
+}
@@ -0,0 +1,26 @@
+package livewire.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Event;
+
+
+/**
+ * The common fields of all live-wire Flight Recorder events.
+ *
+ * @author James Gomez
+ */
+@Category("Live-wire")
+abstract class PipelineEvent extends Event
+{
+    @Label("Image Rows")
+    int rows;
+
+    @Label("Image Columns")
+    int cols;
+
+    @Label("Nodes")
+    @Description("Pixels, settled nodes or path points handled by the stage")
+    long nodes;
+}
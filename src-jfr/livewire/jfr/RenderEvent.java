@@ -0,0 +1,13 @@
+package livewire.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("livewire.Render")
+@Label("Render")
+@Description("Drawing and presenting one frame")
+class RenderEvent extends PipelineEvent
+{
+}
@@ -0,0 +1,13 @@
+package livewire.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("livewire.SegmentExtraction")
+@Label("Segment Extraction")
+@Description("Building the boundary mask and image segment")
+class SegmentExtractionEvent extends PipelineEvent
+{
+}
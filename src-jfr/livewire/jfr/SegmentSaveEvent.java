@@ -0,0 +1,13 @@
+package livewire.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("livewire.SegmentSave")
+@Label("Segment Save")
+@Description("Writing the boundary and segment images")
+class SegmentSaveEvent extends PipelineEvent
+{
+}
@@ -0,0 +1,281 @@
+package livewire;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_highgui;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+
+/**
+ * Segments a directory of images without a display. A seed file lists, one
+ * object per line, an image file name followed by the object's seed points
+ * in the order they would be clicked:
+ *
+ * <pre>
+ * # image      x,y     x,y     x,y ...
+ * coin.jpg     120,45  180,90  130,160
+ * </pre>
+ *
+ * For every object the live-wire is traced from seed to seed, as if each
+ * seed were clicked, and closed back to the first seed; its boundary and
+ * mask are written as PNG images. Images are processed in parallel. Each
+ * worker thread keeps its LivewireEngine, whose buffers are reused as is for
+ * images of the same size, and images only start while their estimated
+ * memory fits in a shared MemoryBudget. The estimate is reserved before the
+ * image is decoded, from the size in its header; an image whose header
+ * ImageIO cannot read holds the whole budget until it has been decoded.
+ *
+ * @author James Gomez
+ */
+public class BatchSegmenter
+{
+    /**
+     * the estimated heap and native memory used per pixel of an image besides
+     * its expansion: its decoded image, features and output images
+     */
+    static final long BYTES_PER_PIXEL = 24;
+
+    private final File outDir;
+    private final int threads;
+    private final MemoryBudget budget;
+    private final ThreadLocal<LivewireEngine> engines = new ThreadLocal<LivewireEngine>();
+    private FeatureCache cache;
+
+    public BatchSegmenter(File outDir, int threads, MemoryBudget budget) {
+        this.outDir = outDir;
+        this.threads = threads;
+        this.budget = budget;
+    }
+
+    /** Reads and stores cost images in the given cache; null disables it */
+    public void setFeatureCache(FeatureCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Reads a seed file
+     *
+     * @return the seed points (x, y pairs) of each object, by image file name,
+     * in file order
+     */
+    public static Map<String, List<int[]>> readSeeds(File file) throws IOException {
+        Map<String, List<int[]>> seeds = new LinkedHashMap<String, List<int[]>>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                String[] fields = line.split("\\s+");
+                int[] points = new int[2 * (fields.length - 1)];
+                try {
+                    for (int i = 1; i < fields.length; i++) {
+                        String[] xy = fields[i].split(",");
+                        points[2 * i - 2] = Integer.parseInt(xy[0]);
+                        points[2 * i - 1] = Integer.parseInt(xy[1]);
+                    }
+                }
+                catch (RuntimeException e) {
+                    throw new IOException(file + ":" + number + ": expected x,y seed points");
+                }
+                if (points.length < 4)
+                    throw new IOException(file + ":" + number + ": an object needs two seeds or more");
+
+                List<int[]> objects = seeds.get(fields[0]);
+                if (objects == null) {
+                    objects = new ArrayList<int[]>();
+                    seeds.put(fields[0], objects);
+                }
+                objects.add(points);
+            }
+        }
+        finally {
+            in.close();
+        }
+        return seeds;
+    }
+
+    /**
+     * Segments the objects of every image named in the seed map, reading the
+     * images from dir
+     *
+     * @return the number of images that failed
+     */
+    public int run(File dir, Map<String, List<int[]>> seeds) throws InterruptedException {
+        if (!outDir.isDirectory() && !outDir.mkdirs())
+            System.out.println("WARNING: could not create " + outDir);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        List<String> names = new ArrayList<String>();
+        for (final Map.Entry<String, List<int[]>> entry : seeds.entrySet()) {
+            final File image = new File(dir, entry.getKey());
+            names.add(entry.getKey());
+            results.add(executor.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws Exception {
+                    return segment(image, entry.getValue());
+                }
+            }));
+        }
+        executor.shutdown();
+
+        int failed = 0;
+        int objects = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                objects += results.get(i).get();
+            }
+            catch (ExecutionException e) {
+                failed++;
+                System.out.println("ERROR: " + names.get(i) + ": " + e.getCause().getMessage());
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int done = results.size() - failed;
+        System.out.println(String.format(Locale.ROOT,
+                "Segmented %d objects in %d images (%d failed) in %.1f s, %.2f images/s",
+                objects, done, failed, seconds, done / seconds));
+        return failed;
+    }
+
+    /**
+     * Segments the objects of one image and writes their boundaries and masks
+     *
+     * @return the number of objects segmented
+     */
+    int segment(File file, List<int[]> objects) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        String key = cache == null ? null : cache.key(file);
+        ImageBuffer costs = key == null ? null : cache.get(key);
+        int[] size = costs != null ? new int[] {costs.rows(), costs.cols()} : imageSize(file);
+        long bytes = size != null ? bytes(size[0], size[1]) : budget.capacity();
+        budget.reserve(bytes);
+        try {
+            if (costs == null) {
+                CvMat gray = opencv_highgui.cvLoadImageM(file.getPath(), opencv_core.CV_8U);
+                if (gray == null)
+                    throw new IOException("could not load " + file);
+                if (size == null) {
+                    //the size is known now: keep what the image needs of the whole budget
+                    long needed = bytes(gray.rows(), gray.cols());
+                    if (needed < bytes) {
+                        budget.release(bytes - needed);
+                        bytes = needed;
+                    }
+                }
+                costs = ImageBuffer.wrap(Features.costImage(gray));
+                if (key != null) cache.put(key, costs);
+            }
+            int rows = costs.rows();
+            int cols = costs.cols();
+            LivewireEngine engine = engines.get();
+            if (engine == null) {
+                engine = new LivewireEngine(costs);
+                engine.setMemoryLimit(budget.capacity());
+                engines.set(engine);
+            }
+            else {
+                engine.reset(costs);
+            }
+
+            String base = file.getName();
+            int dot = base.lastIndexOf('.');
+            if (dot > 0) base = base.substring(0, dot);
+            ImageBuffer boundaryImage = ImageBuffer.allocate(rows, cols, opencv_core.CV_8U);
+            ImageBuffer maskImage = ImageBuffer.allocate(rows, cols, opencv_core.CV_8U);
+            for (int k = 0; k < objects.size(); k++) {
+                trace(engine, objects.get(k));
+                engine.extract(boundaryImage, maskImage);
+                save(new File(outDir, base + "_" + k + "_boundary.png"), boundaryImage);
+                save(new File(outDir, base + "_" + k + "_mask.png"), maskImage);
+            }
+        }
+        finally {
+            budget.release(bytes);
+        }
+        System.out.println(file.getName() + ": " + objects.size() + " objects in " +
+                (System.nanoTime() - start) / 1000000 + " ms");
+        return objects.size();
+    }
+
+    /** @return the estimated memory of segmenting an image of the given size */
+    private long bytes(int rows, int cols) {
+        return (long) rows * cols * BYTES_PER_PIXEL +
+                LivewireEngine.expansionBytes(rows, cols, budget.capacity());
+    }
+
+    /**
+     * Reads the size of an image from its header, without decoding it
+     *
+     * @return the rows and columns of the image, or null if ImageIO has no
+     * reader for its format or cannot read its header
+     */
+    static int[] imageSize(File file) {
+        try {
+            ImageInputStream in = ImageIO.createImageInputStream(file);
+            if (in == null) return null;
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()) return null;
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, true);
+                    return new int[] {reader.getHeight(0), reader.getWidth(0)};
+                }
+                finally {
+                    reader.dispose();
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            //decoding the image will report the problem
+            return null;
+        }
+    }
+
+    /**
+     * Traces the live-wire through the given seed points (x, y pairs) as if
+     * each were clicked, then closes it back to the first seed.
+     */
+    static void trace(LivewireEngine engine, int[] points) {
+        engine.seed(points[0], points[1]);
+        for (int i = 2; i < points.length; i += 2) {
+            if (engine.cool(points[i], points[i + 1]))
+                return;
+        }
+        //the path back to the first seed closes the contour
+        engine.close();
+    }
+
+    private static void save(File file, ImageBuffer image) throws IOException {
+        if (opencv_highgui.cvSaveImage(file.getPath(), image.asCvMat()) == 0)
+            throw new IOException("could not write " + file);
+    }
+}
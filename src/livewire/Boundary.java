@@ -0,0 +1,182 @@
+package livewire;
+
+import com.googlecode.javacpp.Loader;
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMemStorage;
+import com.googlecode.javacv.cpp.opencv_core.CvPoint2D32f;
+import com.googlecode.javacv.cpp.opencv_core.CvSeq;
+import com.googlecode.javacv.cpp.opencv_imgproc;
+
+import java.util.Arrays;
+
+
+/**
+ * The cooled boundary of a segmentation: the pixels of the live-wires fixed
+ * so far, in order from the first seed, as linear pixel indices. Cooling
+ * reuses its buffers, so extending a boundary allocates nothing once the
+ * boundary has reached its largest size.
+ *
+ * @author James Gomez
+ */
+public class Boundary
+{
+    private final int rows;
+    private final int cols;
+    /** the linear indices (row * cols + col) of the boundary's pixels, in order */
+    private int[] points = new int[2000];
+    private int size;
+    /** the path being cooled, as walked from the cursor back to the seed */
+    private int[] walk = new int[1024];
+
+    /** Creates an empty boundary on an image of the given size */
+    public Boundary(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** @return the linear index of the i-th pixel of the boundary */
+    public int get(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException("point " + i + " of " + size);
+        return points[i];
+    }
+
+    /** @return the row of the i-th pixel of the boundary */
+    public int row(int i) {
+        return get(i) / cols;
+    }
+
+    /** @return the column of the i-th pixel of the boundary */
+    public int col(int i) {
+        return get(i) % cols;
+    }
+
+    /** Removes all pixels */
+    public void clear() {
+        size = 0;
+    }
+
+    /** Appends a single pixel, as when restoring a saved boundary */
+    void add(int index) {
+        if (size == points.length)
+            points = Arrays.copyOf(points, 2 * size);
+        points[size++] = index;
+    }
+
+    /**
+     * Appends the path from lastseed to current, following the map's parent
+     * pointers. If the path crosses the start of the boundary, the boundary is
+     * closed there and the rest of the path is dropped.
+     *
+     * @return true if the boundary was closed
+     */
+    public boolean cool(CostMap map, int current, int lastseed) {
+        int n = current;
+        int length = 0;
+        while (n != lastseed && map.parent(n) != CostMap.NONE){
+            if (length == walk.length)
+                walk = Arrays.copyOf(walk, 2 * length);
+            walk[length++] = n;
+            n = map.parent(n);
+        }
+        return cool(walk, length);
+    }
+
+    /**
+     * Appends a path given as pixel indices from its far end back towards the
+     * boundary's last pixel, which it excludes, closing the boundary as cool
+     * does
+     *
+     * @return true if the boundary was closed
+     */
+    boolean cool(int[] path, int length) {
+        Object trace = Trace.get().begin(Trace.Stage.PATH_EXTRACTION);
+        boolean closed = false;
+        int redundantCount = 0;
+        for (int i = 0; i < length; i++) {
+            if (size > 0 && points[0] == path[i])
+                closed = true;
+
+            if (!closed)
+                redundantCount++;
+        }
+        for (int i = length - 1; i >= 0; i--)
+            add(path[i]);
+
+        //remove redundant pixels
+        if (closed)
+            size = Math.max(size - redundantCount - 1, 0);
+
+        Trace.get().end(trace, rows, cols, length);
+        return closed;
+    }
+
+    /** Sets the boundary's pixels to 255 in an 8-bit image of the boundary's size */
+    public void draw(ImageBuffer image) {
+        for (int i = 0; i < size; i++)
+            image.put(points[i] / cols, points[i] % cols, 255);
+    }
+
+    /**
+     * Sets to 255 the pixels of mask that lie inside or on the contour traced
+     * in boundaryImage, which must hold this boundary as drawn by draw. Only
+     * pixels within the boundary's bounding box can be inside, so only those
+     * are tested. Note that OpenCV's contour search modifies boundaryImage.
+     */
+    public void fillMask(ImageBuffer boundaryImage, ImageBuffer mask) {
+        if (size == 0) return;
+        int top = rows;
+        int left = cols;
+        int bottom = -1;
+        int right = -1;
+        for (int i = 0; i < size; i++) {
+            int row = points[i] / cols;
+            int col = points[i] % cols;
+            top = Math.min(top, row);
+            bottom = Math.max(bottom, row);
+            left = Math.min(left, col);
+            right = Math.max(right, col);
+        }
+
+        //extract boundary contour and test each pixel against it
+        CvMemStorage storage = CvMemStorage.create();
+        try {
+            CvSeq contours = new CvSeq();
+            opencv_imgproc.cvFindContours(
+                    boundaryImage.asCvMat(),
+                    storage,
+                    contours,
+                    Loader.sizeof(opencv_core.CvContour.class),
+                    opencv_imgproc.CV_RETR_LIST,
+                    opencv_imgproc.CV_CHAIN_APPROX_SIMPLE);
+            if (contours.isNull()) return;
+            CvPoint2D32f point = new CvPoint2D32f();
+            for (int i = top; i <= bottom; i++) {
+                for (int j = left; j <= right; j++) {
+                    point.put(j, i);
+                    if (opencv_imgproc.cvPointPolygonTest(contours, point, 0) >= 0)
+                        mask.put(i, j, 255);
+                }
+            }
+        }
+        finally {
+            storage.release();
+        }
+    }
+}
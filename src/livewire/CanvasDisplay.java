@@ -0,0 +1,350 @@
+package livewire;
+
+import com.googlecode.javacv.CanvasFrame;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_highgui;
+
+import java.awt.BasicStroke;
+import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferStrategy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.swing.JFrame;
+import javax.swing.WindowConstants;
+
+
+/**
+ * A Display built on JavaCV's CanvasFrame. The image is served by an
+ * ImagePyramid as cached, display-compatible tiles that Java2D can keep in
+ * video memory. The cooled boundary and the live-wire are kept as vector
+ * overlay layers (polylines) and are drawn over the tiles into the canvas's
+ * two-page BufferStrategy, which is then flipped. Handling a mouse event
+ * therefore never copies image pixels from Java.
+ *
+ * <p>The canvas is a viewport onto the image: the mouse wheel zooms around
+ * the cursor and dragging with the middle button pans. Only the tiles visible
+ * at the current zoom, taken from the pyramid level closest to the screen
+ * resolution, are drawn, and the overlays are clipped to the viewport, so the
+ * cost of a frame depends on the window size rather than the image size.</p>
+ *
+ * @author James Gomez
+ */
+public class CanvasDisplay implements Display
+{
+    /** the largest initial canvas size; bigger images start zoomed out */
+    private static final int MAX_WIDTH = 1200;
+    private static final int MAX_HEIGHT = 900;
+    /** the zoom factor applied per mouse wheel notch */
+    private static final double ZOOM_STEP = 1.25;
+    private static final double MAX_ZOOM = 16;
+    private static final int MAX_TILES = 192;
+
+    private final CanvasFrame frame;
+    private final Canvas canvas;
+    private final ImagePyramid pyramid;
+    private final int rows;
+    private final int cols;
+    private final Map<String, CanvasFrame> windows = new HashMap<String, CanvasFrame>();
+
+    /** the cooled boundary layer */
+    private int[] coolX = new int[1024];
+    private int[] coolY = new int[1024];
+    private int coolCount;
+    /** the live-wire layer */
+    private int[] liveX = new int[1024];
+    private int[] liveY = new int[1024];
+    private int liveCount;
+    /** set when the canvas has to be presented again, e.g. after a resize */
+    private volatile boolean damaged = true;
+    /** set when the user closes the window, to end the app like a key press */
+    private volatile boolean closed;
+
+    /** screen pixels per image pixel; guarded by this */
+    private double zoom;
+    private final double minZoom;
+    /** the image coordinates shown at the top-left of the canvas; guarded by this */
+    private double viewX;
+    private double viewY;
+    /** the wires' stroke, two screen pixels wide at the zoom it was made for */
+    private BasicStroke stroke;
+    private double strokeZoom;
+
+    public CanvasDisplay(String title, CvMat image, final EventQueue events) {
+        rows = image.rows();
+        cols = image.cols();
+        pyramid = new ImagePyramid(image, MAX_TILES);
+
+        int width = Math.min(cols, MAX_WIDTH);
+        int height = Math.min(rows, MAX_HEIGHT);
+        zoom = minZoom = Math.min((double) width / cols, (double) height / rows);
+
+        frame = new CanvasFrame(title);
+        //closing the window ends the app through waitKey, so the app cleans up as usual
+        frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter()
+        {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                closed = true;
+            }
+        });
+        frame.setCanvasSize(width, height);
+        frame.setLocation(100, 100);
+        canvas = frame.getCanvas();
+        //all painting is done by show(); ignore the frame's own repaints
+        canvas.setIgnoreRepaint(true);
+
+        MouseAdapter mouse = new MouseAdapter()
+        {
+            private int panX;
+            private int panY;
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                boolean left = e.getButton() == MouseEvent.BUTTON1;
+                boolean right = e.getButton() == MouseEvent.BUTTON3;
+                if (e.getButton() == MouseEvent.BUTTON2) {
+                    panX = e.getX();
+                    panY = e.getY();
+                }
+                else if (e.getClickCount() == 2 && left)
+                    post(opencv_highgui.CV_EVENT_LBUTTONDBLCLK, e);
+                else if (e.getClickCount() == 2 && right)
+                    post(opencv_highgui.CV_EVENT_RBUTTONDBLCLK, e);
+                else if (left)
+                    post(opencv_highgui.CV_EVENT_LBUTTONDOWN, e);
+                else if (right)
+                    post(opencv_highgui.CV_EVENT_RBUTTONDOWN, e);
+            }
+
+            @Override
+            public void mouseMoved(MouseEvent e) {
+                post(opencv_highgui.CV_EVENT_MOUSEMOVE, e);
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if ((e.getModifiersEx() & MouseEvent.BUTTON2_DOWN_MASK) != 0) {
+                    pan(panX - e.getX(), panY - e.getY());
+                    panX = e.getX();
+                    panY = e.getY();
+                }
+                post(opencv_highgui.CV_EVENT_MOUSEMOVE, e);
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                zoom(Math.pow(ZOOM_STEP, -e.getWheelRotation()), e.getX(), e.getY());
+            }
+
+            private void post(int event, MouseEvent e) {
+                int x;
+                int y;
+                synchronized (CanvasDisplay.this) {
+                    x = (int) (viewX + e.getX() / zoom);
+                    y = (int) (viewY + e.getY() / zoom);
+                }
+                x = Math.min(Math.max(x, 0), cols - 1);
+                y = Math.min(Math.max(y, 0), rows - 1);
+                events.post(event, x, y);
+            }
+        };
+        canvas.addMouseListener(mouse);
+        canvas.addMouseMotionListener(mouse);
+        canvas.addMouseWheelListener(mouse);
+        canvas.addComponentListener(new ComponentAdapter()
+        {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                damaged = true;
+            }
+
+            @Override
+            public void componentShown(ComponentEvent e) {
+                damaged = true;
+            }
+        });
+    }
+
+    /** Scales the zoom by factor, keeping the image point under (sx, sy) fixed */
+    private synchronized void zoom(double factor, int sx, int sy) {
+        double newZoom = Math.min(Math.max(zoom * factor, minZoom), MAX_ZOOM);
+        double ix = viewX + sx / zoom;
+        double iy = viewY + sy / zoom;
+        zoom = newZoom;
+        viewX = ix - sx / zoom;
+        viewY = iy - sy / zoom;
+        clampView();
+        damaged = true;
+    }
+
+    /** Moves the viewport by the given number of screen pixels */
+    private synchronized void pan(int dx, int dy) {
+        viewX += dx / zoom;
+        viewY += dy / zoom;
+        clampView();
+        damaged = true;
+    }
+
+    private void clampView() {
+        double maxX = cols - canvas.getWidth() / zoom;
+        double maxY = rows - canvas.getHeight() / zoom;
+        viewX = Math.max(Math.min(viewX, maxX), 0);
+        viewY = Math.max(Math.min(viewY, maxY), 0);
+    }
+
+    @Override
+    public int drawLiveWire(LivewireEngine engine, int start, int end) {
+        liveCount = 0;
+        while (true) {
+            if (liveCount == liveX.length) {
+                liveX = grow(liveX);
+                liveY = grow(liveY);
+            }
+            liveX[liveCount] = engine.col(start);
+            liveY[liveCount++] = engine.row(start);
+            if (start == end || engine.parent(start) == CostMap.NONE) break;
+            start = engine.parent(start);
+        }
+        return liveCount;
+    }
+
+    @Override
+    public void drawCoolWire(Boundary boundary) {
+        while (coolX.length < boundary.size()) {
+            coolX = grow(coolX);
+            coolY = grow(coolY);
+        }
+        for (int i = 0; i < boundary.size(); i++) {
+            coolX[i] = boundary.col(i);
+            coolY[i] = boundary.row(i);
+        }
+        coolCount = boundary.size();
+        liveCount = 0;
+    }
+
+    @Override
+    public void clear() {
+        coolCount = 0;
+        liveCount = 0;
+    }
+
+    @Override
+    public void show() {
+        BufferStrategy strategy = canvas.getBufferStrategy();
+        if (strategy == null) return;
+
+        double z;
+        double x0;
+        double y0;
+        synchronized (this) {
+            z = zoom;
+            x0 = viewX;
+            y0 = viewY;
+        }
+        double x1 = Math.min(x0 + canvas.getWidth() / z, cols);
+        double y1 = Math.min(y0 + canvas.getHeight() / z, rows);
+
+        //the coarsest level whose pixels are still no smaller than screen pixels
+        int level = 0;
+        while (level + 1 < pyramid.levels() && z * (1 << (level + 1)) <= 1)
+            level++;
+        int f = 1 << level;
+        int span = ImagePyramid.TILE * f;
+
+        do {
+            do {
+                Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+                g.setColor(Color.BLACK);
+                g.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+                g.scale(z, z);
+                g.translate(-x0, -y0);
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                for (int ty = (int) y0 / span; ty * span < y1; ty++) {
+                    for (int tx = (int) x0 / span; tx * span < x1; tx++) {
+                        int w = Math.min(ImagePyramid.TILE, pyramid.cols(level) - tx * ImagePyramid.TILE);
+                        int h = Math.min(ImagePyramid.TILE, pyramid.rows(level) - ty * ImagePyramid.TILE);
+                        g.drawImage(pyramid.tile(level, tx, ty),
+                                tx * span, ty * span, w * f, h * f, null);
+                    }
+                }
+
+                g.clipRect((int) x0, (int) y0, (int) Math.ceil(x1 - x0) + 1,
+                        (int) Math.ceil(y1 - y0) + 1);
+                if (stroke == null || strokeZoom != z) {
+                    stroke = new BasicStroke((float) (2 / z));
+                    strokeZoom = z;
+                }
+                g.setStroke(stroke);
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                        RenderingHints.VALUE_ANTIALIAS_ON);
+                g.setColor(Color.CYAN);
+                g.drawPolyline(coolX, coolY, coolCount);
+                g.setColor(Color.RED);
+                g.drawPolyline(liveX, liveY, liveCount);
+                g.dispose();
+            } while (strategy.contentsRestored());
+            strategy.show();
+        } while (strategy.contentsLost());
+        damaged = false;
+    }
+
+    @Override
+    public void showImage(String title, CvMat image, int x, int y) {
+        CanvasFrame window = windows.get(title);
+        if (window == null) {
+            window = new CanvasFrame(title);
+            window.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+            window.setLocation(x, y);
+            windows.put(title, window);
+        }
+        window.showImage(ImagePyramid.toImage(image));
+    }
+
+    @Override
+    public void closeImage(String title) {
+        JFrame window = windows.remove(title);
+        if (window != null)
+            window.dispose();
+    }
+
+    @Override
+    public void close() {
+        for (JFrame window : windows.values())
+            window.dispose();
+        windows.clear();
+        frame.dispose();
+    }
+
+    @Override
+    public boolean waitKey(int delay) {
+        if (closed) return true;
+        if (damaged) show();
+        try {
+            KeyEvent key = frame.waitKey(delay);
+            return key != null || closed;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -0,0 +1,34 @@
+package livewire;
+
+
+/**
+ * An ExpansionListener that reports expansion progress on standard out.
+ *
+ * @author James Gomez
+ */
+public class ConsoleExpansionListener implements ExpansionListener
+{
+    private int nodes;
+
+    @Override
+    public void started(int row, int col, int nodes) {
+        this.nodes = nodes;
+        System.out.println("New seed-point row:" + row + " col:" + col);
+        System.out.println("Expanding graph...");
+    }
+
+    @Override
+    public void progress(int settled, int frontier) {
+        System.out.println("Expanding:  " + (int) (100f * settled / nodes) + "%");
+    }
+
+    @Override
+    public void finished(int settled) {
+        System.out.println("Expanding: 100%");
+    }
+
+    @Override
+    public void cancelled(int settled) {
+        System.out.println("Expansion cancelled");
+    }
+}
@@ -1,9 +1,10 @@
 package livewire;
 
 import com.googlecode.javacv.cpp.opencv_core.CvMat;
-import com.googlecode.javacv.cpp.opencv_core.CvPoint;
 
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 
 /**
@@ -12,86 +13,177 @@ import java.util.*;
  * path algorithm to expand the image pixel graph and calculate least cost
  * paths from the seed point to all other pixels in the image.
  *
+ * <p>Pixels are addressed by their linear index, row * cols + col, so images
+ * of any width work up to 2^31 pixels in all. The expansion is held in flat
+ * arrays indexed by pixel, six bytes per pixel: the local cost as a byte,
+ * an int cumulative cost, and one byte packing the expansion state with the
+ * direction of the parent among the pixel's 8 neighbours. Local costs are
+ * copied from the 8-bit image once per image, and cumulative costs are only
+ * written where the expansion reaches, so restarting an expansion just
+ * clears the links. Once created, a
+ * CostMap allocates nothing on the Java heap while seeds are added and paths
+ * are followed: the arrays are reused across expansions, the open and closed
+ * sets are states and the wavefront is a binary heap of indices that only
+ * grows.</p>
+ *
  * @author James Gomez
  */
 public class CostMap
 {
+    /** the index of no pixel, e.g. the parent of the seed */
+    public static final int NONE = -1;
+    /** the heap memory of an expansion per pixel: local cost, cost, and parent and state */
+    static final long BYTES_PER_PIXEL = 6;
     private static final float RAD2 = 1.41421356f;
-    Node[][] original;
-    Node[][] costs;
-    Node lastSeed;
-
+    /** the cancelled flag is checked once every 4096 settled pixels */
+    private static final int CANCEL_CHECK_MASK = 4095;
     /**
-     * Used for the expansion algorithm to store cumulative costs and parent
-     * pointers
+     * the bits of a pixel's link: the direction of its parent (see
+     * parentCode) in the low four and its expansion state above them
      */
-    public class Node
-    {
-        /** the row of the pixel that this node corresponds to */
-        public short row;
-        /** the column of the pixel that this node corresponds to */
-        public short col;
-        /** the current cumulative cost of this node from the seed point */
-        public int cost;
-        /**
-         * the next node along the lowest cost path from this node to the
-         * seed
-         */
-        public Node parent;
-
-        public boolean equals(Node n) {
-            return n.row == this.row && n.col == this.col;
-        }
-
-        @Override
-        public String toString() {
-            String parent = "set";
-            if (parent == null)
-                parent = "null";
-
-            return "Node(row:" + row + " col:" + col + " cost:" + cost +
-                    " parent:" + parent + ")\n";
-        }
-    }
+    private static final int PARENT_BITS = 0x0F;
+    private static final int STATE_BITS = 0x30;
+    /** the expansion states of a pixel */
+    private static final int UNVISITED = 0;
+    private static final int OPEN = 0x10;
+    private static final int CLOSED = 0x20;
+    private static final Histogram expandNanos = Metrics.histogram(Metrics.EXPAND_NANOS);
+    private static final Histogram expandSettled = Metrics.histogram(Metrics.EXPAND_SETTLED);
+    private static final Histogram expandPeakFrontier =
+            Metrics.histogram(Metrics.EXPAND_PEAK_FRONTIER);
+    private static final Histogram seedAllocatedBytes =
+            Metrics.histogram(Metrics.SEED_ALLOCATED_BYTES);
+    /** the local (per-pixel) costs, shared with the image they came from */
+    ImageBuffer original;
+    private int rows;
+    private int cols;
+    /**
+     * per pixel, by linear index row * cols + col: the local cost, unsigned;
+     * the cumulative cost from the seed, only meaningful once the expansion
+     * has visited the pixel; and its link: the expansion state and the
+     * direction of the next pixel on the lowest cost path to the seed, if any
+     */
+    private byte[] local;
+    private int[] cost;
+    private byte[] link;
+    /** the index offset of a parent from its pixel, by parent direction */
+    private final int[] offset = new int[10];
+    private int lastSeed = NONE;
+    /** notified of expansion progress; never null */
+    private ExpansionListener listener = ExpansionListener.NONE;
+    /** set to stop a running expansion early */
+    private volatile boolean cancelled;
+    /** the wavefront, a binary min-heap of pixel indices on cost, reused across expansions */
+    private int[] heap = new int[2048];
+    private int heapSize;
 
     /** Creates a CostMap with the given CvMat image as its starting data */
     public CostMap(CvMat image) {
         reset(image);
     }
 
+    /** Creates a CostMap reading its local costs from the given 8-bit image */
+    public CostMap(ImageBuffer image) {
+        reset(image);
+    }
+
     /** Resets the algorithm to a non-expanded state using a new image */
     public void reset(CvMat image) {
-        original = new Node[image.rows()][image.cols()];
-        costs = new Node[image.rows()][image.cols()];
-
-        //keep a copy of the original costs
-        for (int i = 0; i < original.length; i++) {
-            for (int j = 0; j < original[0].length; j++) {
-                Node n = new Node();
-                n.row = (short) i;
-                n.col = (short) j;
-                n.cost = (int) image.get(i, j);
-                n.parent = null;
-                original[i][j] = n;
+        reset(ImageBuffer.wrap(image));
+    }
+
+    /**
+     * Resets the algorithm to a non-expanded state using a new image. The
+     * image's pixels are copied as local costs; those of an image that is not
+     * 8-bit are clamped to 255.
+     *
+     * @throws IllegalArgumentException if the image has 2^31 pixels or more,
+     *                                  more than a linear index can address
+     */
+    public void reset(ImageBuffer image) {
+        long pixels = (long) image.rows() * image.cols();
+        if (pixels > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("a " + image.cols() + "x" + image.rows() +
+                    " image has too many pixels to expand");
+        original = image;
+        rows = image.rows();
+        cols = image.cols();
+        if (cost == null || cost.length != pixels) {
+            local = new byte[(int) pixels];
+            cost = new int[(int) pixels];
+            link = new byte[(int) pixels];
+        }
+        boolean bulk = image.channels() == 1 && ImageBuffer.elemSize(image.type()) == 1;
+        ByteBuffer data = image.buffer();
+        for (int i = 0; i < rows; i++) {
+            if (bulk) {
+                //one row at a time, as rows may be padded
+                data.position(image.offset(i, 0));
+                data.get(local, i * cols, cols);
+            }
+            else {
+                for (int j = 0, k = i * cols; j < cols; j++)
+                    local[k++] = (byte) Math.min(image.get(i, j), 255);
             }
         }
-
+        for (int code = 1; code <= 9; code++)
+            offset[code] = ((code - 1) / 3 - 1) * cols + (code - 1) % 3 - 1;
         reset();
     }
 
     /** Resets the algorithm to the original, non-expanded state. */
     public void reset() {
-        //make a deep copy of the original array of nodes
-        for (int i = 0; i < original.length; i++) {
-            for (int j = 0; j < original[0].length; j++) {
-                Node n = new Node();
-                n.row = original[i][j].row;
-                n.col = original[i][j].col;
-                n.cost = original[i][j].cost;
-                n.parent = null;
-                costs[i][j] = n;
-            }
-        }
+        Object trace = Trace.get().begin(Trace.Stage.COSTMAP_RESET);
+        //a pixel without a parent has its local cost, so the costs need no reset
+        Arrays.fill(link, (byte) 0);
+        Trace.get().end(trace, rows, cols, (long) rows * cols);
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    /** @return the linear index of a pixel */
+    public int index(int row, int col) {
+        return row * cols + col;
+    }
+
+    /** @return the row of the pixel with the given linear index */
+    public int row(int index) {
+        return index / cols;
+    }
+
+    /** @return the column of the pixel with the given linear index */
+    public int col(int index) {
+        return index % cols;
+    }
+
+    /**
+     * @return the cumulative cost of a pixel from the seed, or its local cost
+     * if the expansion has not reached it
+     */
+    public int cost(int index) {
+        if ((link[index] & STATE_BITS) == UNVISITED)
+            return local[index] & 0xFF;
+        return cost[index];
+    }
+
+    /**
+     * @return the index of the next pixel on the lowest cost path from a
+     * pixel to the seed, or NONE for the seed and unreached pixels
+     */
+    public int parent(int index) {
+        int code = link[index] & PARENT_BITS;
+        return code == 0 ? NONE : index + offset[code];
+    }
+
+    /** @return the index of the last seed, or NONE before the first */
+    public int seed() {
+        return lastSeed;
     }
 
     /**
@@ -103,157 +195,286 @@ public class CostMap
      * @param col the column of the starting seedpoint
      */
     public void addSeed(int row, int col) {
-        System.out.println("New seed-point row:" + row + " col:" + col);
-        lastSeed = costs[row][col];
+        cancelled = false;
+        listener.started(row, col, rows * cols);
+        long allocated = Metrics.allocatedBytes();
+        lastSeed = index(row, col);
         reset();
-        expand(row, col);
+        long start = System.nanoTime();
+        Object trace = Trace.get().begin(Trace.Stage.EXPANSION);
+        int settled = expand(lastSeed);
+        Trace.get().end(trace, rows, cols, settled);
+        expandNanos.record(System.nanoTime() - start);
+        if (allocated >= 0)
+            seedAllocatedBytes.record(Metrics.allocatedBytes() - allocated);
+    }
+
+    /**
+     * Sets the listener notified of expansion progress. Pass null to stop
+     * listening; without a listener the expansion does no reporting at all.
+     */
+    public void setExpansionListener(ExpansionListener listener) {
+        this.listener = listener == null ? ExpansionListener.NONE : listener;
     }
 
-    /** @return the Node corresponding to the specified point in the image */
-    public Node getNode(CvPoint point) {
-        return getNode(point.y(), point.x());
+    /**
+     * Stops an expansion running on another thread. The cost map is left
+     * partially expanded until the next call to addSeed.
+     */
+    public void cancel() {
+        cancelled = true;
     }
 
-    /** @return the Node corresponding to the specified point in the image */
-    public Node getNode(int row, int col) {
-        return costs[row][col];
+    /**
+     * @return the estimated heap memory of a CostMap on an image of the given
+     * size, before it is allocated
+     */
+    public static long bytes(int rows, int cols) {
+        return (long) rows * cols * BYTES_PER_PIXEL;
     }
 
-    public Node snapToEdge(int row, int col, int dist) {
-        Node current = original[row][col];
-        Node best = current;
+    /** @return the index of the lowest cost pixel within dist of (row, col) */
+    public int snapToEdge(int row, int col, int dist) {
+        return snapToEdge(original, row, col, dist);
+    }
 
-        for (int i = row - dist; i < row + dist; i++) {
-            for (int j = col - dist; j < col + dist; j++) {
-                current = original[i][j];
-                if (current.cost < best.cost)
-                    best = current;
+    /**
+     * @return the linear index of the lowest cost pixel of a cost image
+     * within dist of (row, col)
+     */
+    static int snapToEdge(ImageBuffer costs, int row, int col, int dist) {
+        int bestRow = row;
+        int bestCol = col;
+        int bestCost = costs.get(row, col);
+
+        int rowEnd = Math.min(row + dist, costs.rows());
+        int colEnd = Math.min(col + dist, costs.cols());
+        for (int i = Math.max(row - dist, 0); i < rowEnd; i++) {
+            for (int j = Math.max(col - dist, 0); j < colEnd; j++) {
+                int cost = costs.get(i, j);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestRow = i;
+                    bestCol = j;
+                }
             }
         }
 
-        return getNode(best.row, best.col);
+        return bestRow * costs.cols() + bestCol;
     }
 
-    public Node getClosestEdge(int row, int col) {
-        Node n = costs[row][col];
+    /**
+     * @return the index of the edge pixel nearest to (row, col) on its path
+     * to the seed
+     */
+    public int getClosestEdge(int row, int col) {
+        int start = index(row, col);
+        int n = start;
         int count = 0;
-        while (!n.equals(lastSeed) && n.parent != null) {
-            if (original[n.row][n.col].cost <= 0)
+        while (n != lastSeed && parent(n) != NONE) {
+            if (local(n) <= 0)
                 return n;
             if (++count >= 30) break; //if too far away
-            n = n.parent;
+            n = parent(n);
         }
 
-        n = costs[row][col];
-        Node best = n;
-        ArrayList<Node> neighbors = getNeighbors(n, 6);
-        while (!n.equals(lastSeed) && n.parent != null) {
-            if (neighbors.contains(n) &&
-                    original[n.row][n.col].cost < original[best.row][best.col]
-                            .cost) {
+        n = start;
+        int best = n;
+        while (n != lastSeed && parent(n) != NONE) {
+            //only pixels within 6 pixels of the cursor, but not under it, qualify
+            boolean near = n != start &&
+                    Math.abs(n / cols - row) <= 6 && Math.abs(n % cols - col) <= 6;
+            if (near && local(n) < local(best)) {
                 best = n;
             }
-            if (original[best.row][best.col].cost <= 5) return best;
+            if (local(best) <= 5) return best;
 
-            n = n.parent;
+            n = parent(n);
         }
 
         return best;
     }
 
+    /** @return the local cost of a pixel */
+    private int local(int index) {
+        return local[index] & 0xFF;
+    }
+
+    /**
+     * Copies one row of the expansion out: for each pixel the direction of its
+     * parent (see parentCode) and its cumulative cost, or its local cost if
+     * the expansion has not reached it
+     */
+    void exportRow(int row, byte[] parents, int[] cumulative) {
+        int k = index(row, 0);
+        for (int j = 0; j < cols; j++, k++) {
+            parents[j] = (byte) (link[k] & PARENT_BITS);
+            cumulative[j] = cost(k);
+        }
+    }
+
+    /**
+     * Restores one row of an expansion copied out by exportRow, reading from
+     * the buffers' current positions
+     *
+     * @throws IndexOutOfBoundsException if a parent lies off the image or is
+     *                                   the pixel itself
+     */
+    void importRow(int row, ByteBuffer parents, IntBuffer cumulative) {
+        int k = index(row, 0);
+        for (int j = 0; j < cols; j++, k++) {
+            int code = parents.get();
+            cost[k] = cumulative.get();
+            if (code == 0) {
+                link[k] = UNVISITED;
+            }
+            else {
+                int i = row + (code - 1) / 3 - 1;
+                int c = j + (code - 1) % 3 - 1;
+                //code 5 is the pixel itself, whose path would never end
+                if (code < 0 || code > 9 || code == 5 || i < 0 || i >= rows || c < 0 || c >= cols)
+                    throw new IndexOutOfBoundsException("parent (" + i + "," + c + ")");
+                link[k] = (byte) (CLOSED | code);
+            }
+        }
+    }
+
+    /** Marks the given pixel as the seed of an expansion restored by importRow */
+    void importSeed(int row, int col) {
+        lastSeed = index(row, col);
+        link[lastSeed] = CLOSED;
+    }
+
+    /**
+     * @return the direction of the parent at (parentRow, parentCol) of the
+     * pixel at (row, col): 1 plus the index of the parent in the pixel's 3x3
+     * neighbourhood, row by row; 0 stands for no parent
+     */
+    private static int parentCode(int row, int col, int parentRow, int parentCol) {
+        return 1 + (parentRow - row + 1) * 3 + (parentCol - col + 1);
+    }
+
     /**
      * Generates cumulative costs and parent pointers using a variation of
      * Dijkstra's
-     * shortest path algorithm. The resultant min-cost tree is stored in a
-     * 2-D array
+     * shortest path algorithm. The resultant min-cost tree is stored in
+     * arrays indexed by pixel.
+     *
+     * @return the number of pixels settled
      */
-    private void expand(int row, int col) {
-        //create algorithm data structures COMPARE VIA CUM COST
-        Set<Node> closed = new HashSet<Node>(1000);
-        Set<Node> open = new HashSet<Node>(1000);
-        PriorityQueue<Node> wavefront =
-                new PriorityQueue<Node>(2000, new Comparator<Node>()
-                {
-                    @Override
-                    public int compare(Node a, Node b) {
-                        if (a.cost > b.cost) return 1;
-                        if (a.cost < b.cost) return -1;
-                        return 0;
-                    }
-                });
+    private int expand(int seed) {
+        byte[] local = this.local;
+        int[] cost = this.cost;
+        byte[] link = this.link;
+        heapSize = 0;
 
-        Node current = costs[row][col];
-        current.cost = 0;
-        wavefront.add(current);
-        open.add(current);
+        int current = seed;
+        cost[current] = 0;
+        push(current);
+        link[current] = OPEN;
 
         int count = 0;
-        float size = (float) original.length * original[0].length;
-        int step = (int) size / 20;
-        System.out.println("Expanding graph...");
-        while (!wavefront.isEmpty()) {
-            //get next lowest cost Node from wavefront and add to closed set
-            current = wavefront.poll();
-            open.remove(current);
-            closed.add(current);
-
-            //get neighbors of current and expandVcost
-            List<Node> neigbors = getNeighbors(current, 1);
-            for (int i = 0; i < neigbors.size(); i++) {
-                Node n = neigbors.get(i);
-                if (closed.contains(n)) continue;
-
-                int tentativeCost = euclideanAdd(current, n);
-                if (n.parent == null || current.cost + tentativeCost < n.cost) {
-                    n.parent = current;
-                    n.cost = tentativeCost;
-                }
+        int peakFrontier = 0;
+        int step = Math.max(rows * cols / 20, 1);
+        int nextProgress = listener == ExpansionListener.NONE ? -1 : 0;
+        while (heapSize > 0) {
+            //get next lowest cost pixel from wavefront and add to closed set
+            current = pop();
+            link[current] = (byte) (link[current] & PARENT_BITS | CLOSED);
+            int row = current / cols;
+            int col = current - row * cols;
+            int currentCost = cost[current];
+
+            //expand the 8 neighbors of current, row by row
+            for (int i = row - 1; i <= row + 1; i++) {
+                if (i < 0 || i >= rows) continue;
+                for (int j = col - 1; j <= col + 1; j++) {
+                    if (j < 0 || j >= cols) continue;
+                    int n = i * cols + j;
+                    int l = link[n];
+                    if ((l & STATE_BITS) == CLOSED) continue; //includes current itself
+
+                    //the euclidean-scaled cumulative cost: diagonals scale by RAD2;
+                    //a pixel the expansion has not reached yet counts its local cost
+                    int c = (l & PARENT_BITS) == 0 ? local[n] & 0xFF : cost[n];
+                    int tentativeCost = i != row && j != col
+                            ? currentCost + (int) (RAD2 * c)
+                            : currentCost + c;
+                    if ((l & PARENT_BITS) == 0 || currentCost + tentativeCost < cost[n]) {
+                        l = l & STATE_BITS | parentCode(i, j, row, col);
+                        cost[n] = tentativeCost;
+                    }
 
-                //add neighbors to wavefront if not already in
-                if (!open.contains(n)) {
-                    wavefront.add(n);
-                    open.add(n);
+                    //add neighbors to wavefront if not already in
+                    if ((l & STATE_BITS) != OPEN) {
+                        push(n);
+                        l = l & PARENT_BITS | OPEN;
+                    }
+                    link[n] = (byte) l;
                 }
             }
+            if (heapSize > peakFrontier)
+                peakFrontier = heapSize;
 
-            if (count % step == 0) {
-                System.out.println(
-                        "Expanding:  " + (int)(100 * (count/size)) + "%");
+            if (count == nextProgress) {
+                listener.progress(count, heapSize);
+                nextProgress += step;
             }
-            count++;
-        }
-        System.out.println("Expanding: 100%");
-    }
-
-    /** @return a list of n's neighbor Nodes */
-    private ArrayList<Node> getNeighbors(Node n, int distance) {
-        ArrayList<Node> neighbors = new ArrayList<Node>(8);
-
-        for (int i = n.row - distance; i <= n.row + distance; i++) {
-            for (int j = n.col - distance; j <= n.col + distance; j++) {
-                //skip node n
-                if (i == n.row && j == n.col) continue;
-                //check if current neighbor is within image bounds
-                if (i >= 0 && j >= 0 && i < costs.length && j < costs[0]
-                        .length) {
-                    neighbors.add(costs[i][j]);
-                }
+            if ((++count & CANCEL_CHECK_MASK) == 0 && cancelled) {
+                expandSettled.record(count);
+                expandPeakFrontier.record(peakFrontier);
+                listener.cancelled(count);
+                return count;
             }
         }
-
-        return neighbors;
+        expandSettled.record(count);
+        expandPeakFrontier.record(peakFrontier);
+        listener.finished(count);
+        return count;
     }
 
     /**
-     * @return the euclidean-scaled cumulative cost from Node current to
-     * Node n
+     * Adds a pixel to the wavefront. The sift-up and sift-down below mirror
+     * java.util.PriorityQueue, so pixels of equal cost leave the wavefront in
+     * the same order, and ties resolve to the same paths, as they always have.
      */
-    private int euclideanAdd(Node current, Node n) {
-        //if diagonal, scale by RAD2
-        if (current.row != n.row && current.col != n.col)
-            return current.cost + (int) (RAD2 * costs[n.row][n.col].cost);
+    private void push(int x) {
+        if (heapSize == heap.length)
+            heap = Arrays.copyOf(heap, heap.length * 2);
+        int xCost = cost[x];
+        int k = heapSize++;
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            int e = heap[parent];
+            if (xCost >= cost[e]) break;
+            heap[k] = e;
+            k = parent;
+        }
+        heap[k] = x;
+    }
 
-        return current.cost + costs[n.row][n.col].cost;
+    /** Removes and returns the lowest cost pixel of the wavefront */
+    private int pop() {
+        int result = heap[0];
+        int size = --heapSize;
+        int x = heap[size];
+        if (size == 0) return result;
+
+        int xCost = cost[x];
+        int k = 0;
+        int half = size >>> 1;
+        while (k < half) {
+            int child = 2 * k + 1;
+            int c = heap[child];
+            int right = child + 1;
+            if (right < size && cost[c] > cost[heap[right]])
+                c = heap[child = right];
+            if (xCost <= cost[c]) break;
+            heap[k] = c;
+            k = child;
+        }
+        heap[k] = x;
+        return result;
     }
 
 }
@@ -0,0 +1,27 @@
+package livewire;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A lock-free, monotonically increasing count of events.
+ *
+ * @author James Gomez
+ */
+public class Counter implements CounterMBean
+{
+    private final AtomicLong count = new AtomicLong();
+
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    public void add(long n) {
+        count.addAndGet(n);
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+}
@@ -0,0 +1,12 @@
+package livewire;
+
+
+/**
+ * The JMX management interface of a Counter.
+ *
+ * @author James Gomez
+ */
+public interface CounterMBean
+{
+    long getCount();
+}
@@ -0,0 +1,47 @@
+package livewire;
+
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+
+
+/**
+ * A Display shows the image being segmented together with the live-wire and
+ * the cooled boundary, and reports the user's mouse events to an EventQueue.
+ *
+ * @author James Gomez
+ */
+public interface Display
+{
+    /**
+     * Draws the live-wire from pixel start along the engine's parent pointers
+     * to pixel end, replacing the previously drawn live-wire. Pixels are the
+     * engine's linear indices.
+     *
+     * @return the number of points on the live-wire
+     */
+    int drawLiveWire(LivewireEngine engine, int start, int end);
+
+    /** Draws the cooled boundary, removing the live-wire */
+    void drawCoolWire(Boundary boundary);
+
+    /** Removes the live-wire and the cooled boundary */
+    void clear();
+
+    /** Presents the current frame on screen */
+    void show();
+
+    /** Shows an additional image in its own window at the given location */
+    void showImage(String title, CvMat image, int x, int y);
+
+    /** Closes a window opened by showImage, if it is open */
+    void closeImage(String title);
+
+    /** Closes the display's window and those opened by showImage */
+    void close();
+
+    /**
+     * Lets the GUI deliver events for up to delay milliseconds.
+     *
+     * @return true if a key was pressed or the window was closed
+     */
+    boolean waitKey(int delay);
+}
@@ -0,0 +1,120 @@
+package livewire;
+
+import com.googlecode.javacv.cpp.opencv_highgui;
+
+
+/**
+ * EventQueue decouples the delivery of mouse events from their processing.
+ * Button events are kept in order, but of a burst of mouse moves only the
+ * latest cursor position is kept; superseded moves are counted as dropped.
+ * The application drains the queue once per displayed frame, so the
+ * live-wire follows the cursor with bounded lag however fast events arrive.
+ *
+ * <p>Events may be posted from any thread. Each event carries the
+ * System.nanoTime() at which it was posted, so that its latency can be
+ * measured once it has been handled. Posted events can also be written to a
+ * MouseTrace, to replay the session later.</p>
+ *
+ * <p>Positions are clamped to the image as they are posted: a window keeps
+ * reporting the mouse while it is dragged past its edge, and no handler has
+ * to expect a position off the image.</p>
+ *
+ * @author James Gomez
+ */
+public class EventQueue
+{
+    /** the event type, x, y and post time of each queued button event */
+    private long[] events = new long[4 * 16];
+    private int head;
+    private int count;
+
+    private boolean movePending;
+    private int moveX;
+    private int moveY;
+    private long moveTime;
+    private long dropped;
+    private final Counter droppedCounter = Metrics.counter(Metrics.EVENTS_DROPPED);
+    private MouseTrace.Recorder recorder;
+    /** the size of the image the positions are clamped to */
+    private final int rows;
+    private final int cols;
+
+    /** Creates a queue for mouse events over an image of the given size */
+    public EventQueue(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /** Records every posted event with the given recorder, or stops if null */
+    public synchronized void setRecorder(MouseTrace.Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /** Queues a mouse event reported at the given position, clamped to the image */
+    public synchronized void post(int event, int x, int y) {
+        long now = System.nanoTime();
+        x = Math.min(Math.max(x, 0), cols - 1);
+        y = Math.min(Math.max(y, 0), rows - 1);
+        if (recorder != null) recorder.record(event, x, y, now);
+        if (movePending) {
+            //a newer move, or a button event at its own position, supersedes it
+            movePending = false;
+            dropped++;
+            droppedCounter.increment();
+        }
+
+        if (event == opencv_highgui.CV_EVENT_MOUSEMOVE) {
+            movePending = true;
+            moveX = x;
+            moveY = y;
+            moveTime = now;
+            return;
+        }
+
+        if (4 * count == events.length) {
+            long[] grown = new long[events.length * 2];
+            for (int i = 0; i < count; i++)
+                System.arraycopy(events, slot(i), grown, 4 * i, 4);
+            events = grown;
+            head = 0;
+        }
+        int k = slot(count++);
+        events[k] = event;
+        events[k + 1] = x;
+        events[k + 2] = y;
+        events[k + 3] = now;
+    }
+
+    /**
+     * Removes the next event, button events first, and stores its type, x, y
+     * and post time in the first four elements of out.
+     *
+     * @return false if there was no event to remove
+     */
+    public synchronized boolean poll(long[] out) {
+        if (count > 0) {
+            System.arraycopy(events, 4 * head, out, 0, 4);
+            head = (head + 1) % (events.length / 4);
+            count--;
+            return true;
+        }
+        if (movePending) {
+            out[0] = opencv_highgui.CV_EVENT_MOUSEMOVE;
+            out[1] = moveX;
+            out[2] = moveY;
+            out[3] = moveTime;
+            movePending = false;
+            return true;
+        }
+        return false;
+    }
+
+    /** @return the number of mouse moves discarded because a newer event arrived */
+    public synchronized long dropped() {
+        return dropped;
+    }
+
+    private int slot(int i) {
+        return 4 * ((head + i) % (events.length / 4));
+    }
+}
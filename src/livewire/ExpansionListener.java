@@ -0,0 +1,55 @@
+package livewire;
+
+
+/**
+ * Receives notifications about the progress of a CostMap expansion. Listeners
+ * are called on the expanding thread, from inside the expansion loop, and
+ * should return quickly.
+ *
+ * @author James Gomez
+ */
+public interface ExpansionListener
+{
+    /** A listener that ignores all notifications */
+    ExpansionListener NONE = new ExpansionListener()
+    {
+        @Override
+        public void started(int row, int col, int nodes) {
+        }
+
+        @Override
+        public void progress(int settled, int frontier) {
+        }
+
+        @Override
+        public void finished(int settled) {
+        }
+
+        @Override
+        public void cancelled(int settled) {
+        }
+    };
+
+    /**
+     * Called when an expansion from a new seed point begins
+     *
+     * @param row   the row of the seed point
+     * @param col   the column of the seed point
+     * @param nodes the total number of nodes in the graph
+     */
+    void started(int row, int col, int nodes);
+
+    /**
+     * Called periodically while the expansion runs, about 20 times in total
+     *
+     * @param settled  the number of nodes whose least cost path is final
+     * @param frontier the number of nodes currently on the wavefront
+     */
+    void progress(int settled, int frontier);
+
+    /** Called when every reachable node has been settled */
+    void finished(int settled);
+
+    /** Called when the expansion stopped early because it was cancelled */
+    void cancelled(int settled);
+}
@@ -0,0 +1,190 @@
+package livewire;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_highgui;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * A directory of cost images kept between launches, so that reopening an
+ * image skips feature extraction. Entries are keyed by a hash of the image
+ * file's contents and of Features.PARAMETERS: an edited image or changed
+ * feature parameters simply miss.
+ *
+ * <p>Each entry is one file: a 32-byte header (magic, version, rows,
+ * columns, CvMat type) followed by the pixels, row after row. Entries are
+ * memory-mapped read-only and wrapped as ImageBuffers, so a hit costs a file
+ * hash and no copying; the pages are read as the live-wire touches them.
+ * Entries are written to a temporary file and renamed into place, so
+ * concurrent writers and crashes never leave a torn entry.</p>
+ *
+ * @author James Gomez
+ */
+public class FeatureCache
+{
+    private static final int MAGIC = 0x4C574643; //"LWFC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final String SUFFIX = ".lwc";
+
+    private final File dir;
+
+    /** Creates a cache in the given directory, which is created if missing */
+    public FeatureCache(File dir) {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            System.out.println("WARNING: could not create feature cache " + dir);
+    }
+
+    public File dir() {
+        return dir;
+    }
+
+    /** @return the file holding the entry with the given key */
+    public File file(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    /**
+     * Returns the cost image of an image file, from the cache if present;
+     * otherwise computes it and stores it.
+     *
+     * @param gray the image, decoded as grayscale, or null to decode it on a
+     *             miss
+     */
+    public ImageBuffer costs(File image, CvMat gray) throws IOException {
+        String key = key(image);
+        ImageBuffer costs = get(key);
+        if (costs != null) return costs;
+
+        if (gray == null) {
+            gray = opencv_highgui.cvLoadImageM(image.getPath(), opencv_core.CV_8U);
+            if (gray == null)
+                throw new IOException("could not load image " + image);
+        }
+        costs = ImageBuffer.wrap(Features.costImage(gray));
+        put(key, costs);
+        return costs;
+    }
+
+    /** @return the key of an image file's cost image */
+    public String key(File image) throws IOException {
+        return key(image, Features.PARAMETERS);
+    }
+
+    /**
+     * @return the key of an image file's cost image under the given feature
+     * parameters, a description like Features.PARAMETERS
+     */
+    public String key(File image, String parameters) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(parameters.getBytes("UTF-8"));
+        InputStream in = new FileInputStream(image);
+        try {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                digest.update(buffer, 0, n);
+        }
+        finally {
+            in.close();
+        }
+
+        StringBuilder hex = new StringBuilder(40);
+        for (byte b : digest.digest())
+            hex.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        return hex.toString();
+    }
+
+    /**
+     * @return the cached cost image with the given key, mapped read-only, or
+     * null if there is none or it is damaged
+     */
+    public ImageBuffer get(String key) {
+        File file = file(key);
+        if (!file.isFile()) return null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                if (channel.size() < HEADER_SIZE) return damaged(file);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                    return damaged(file);
+                int rows = header.getInt();
+                int cols = header.getInt();
+                int type = header.getInt();
+                long size = (long) rows * cols * ImageBuffer.elemSize(type);
+                if (rows <= 0 || cols <= 0 || channel.size() != HEADER_SIZE + size)
+                    return damaged(file);
+
+                //the mapping stays valid after the channel is closed
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size);
+                return ImageBuffer.wrap(data, rows, cols, type);
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("WARNING: could not read feature cache " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Stores a cost image under the given key, replacing any entry */
+    public void put(String key, ImageBuffer costs) {
+        File file = file(key);
+        File temp = null;
+        try {
+            temp = File.createTempFile(key, ".tmp", dir);
+            RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION)
+                        .putInt(costs.rows()).putInt(costs.cols()).putInt(costs.type());
+                header.clear();
+                channel.write(header, 0);
+
+                costs.write(channel, HEADER_SIZE);
+            }
+            finally {
+                raf.close();
+            }
+            if (!temp.renameTo(file)) {
+                //another writer got there first, or the platform will not replace files
+                if (!file.delete() || !temp.renameTo(file))
+                    temp.delete();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("WARNING: could not write feature cache " + file + ": " + e.getMessage());
+            if (temp != null) temp.delete();
+        }
+    }
+
+    private static ImageBuffer damaged(File file) {
+        System.out.println("WARNING: ignoring damaged feature cache entry " + file);
+        return null;
+    }
+}
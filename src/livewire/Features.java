@@ -0,0 +1,208 @@
+package livewire;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_imgproc;
+
+
+/**
+ * Extracts the image features that make up the local costs of the live-wire:
+ * the gradient, the Canny edges and their inverse weighted sum.
+ *
+ * @author James Gomez
+ */
+public final class Features
+{
+    /** The weight of the gradient magnitude in the cost image */
+    public static final float GRADIENT_WEIGHT = 0.80f;
+    /** The weight of the Canny edges in the cost image */
+    public static final float EDGE_WEIGHT = 0.25f;
+    /** The weight of the gradient direction in the cost image */
+    public static final float DIRECTION_WEIGHT = 0.15f;
+    /** The size of the Gaussian blur applied before the gradient and edges */
+    public static final int BLUR_SIZE = 3;
+    /** The aperture of the Sobel operator */
+    public static final int SOBEL_APERTURE = 3;
+    /** The hysteresis thresholds and aperture of the Canny edge detector */
+    public static final double CANNY_LOW = 15;
+    public static final double CANNY_HIGH = 45;
+    public static final int CANNY_APERTURE = 3;
+    /**
+     * Names every parameter of costImage. Bump the version whenever the
+     * algorithm changes, so that cached cost images are not reused.
+     */
+    public static final String PARAMETERS = "costImage v1 weights " + GRADIENT_WEIGHT + "," +
+            EDGE_WEIGHT + "," + DIRECTION_WEIGHT + " blur " + BLUR_SIZE + " sobel " +
+            SOBEL_APERTURE + " canny " + CANNY_LOW + "," + CANNY_HIGH + "," + CANNY_APERTURE;
+
+    /**
+     * A structure used to store the gradient x and y components, gradient magnitude,
+     * and gradient direction features of an image.
+     */
+    public static class GradStruct
+    {
+        /** The x-component of the image gradient */
+        public CvMat x;
+        /** The y-component of the image gradient */
+        public CvMat y;
+        /** The gradient magnitude of the image */
+        public CvMat mag;
+        /** The gradient direction of the image */
+        public CvMat dir;
+    }
+
+    private Features() {
+    }
+
+    /**
+     * Builds the local cost image of a grayscale image with the default
+     * weights, timing each stage into Metrics and Trace.
+     *
+     * @return the inverse-weighted-sum of the features
+     */
+    public static CvMat costImage(CvMat image) {
+        Trace trace = Trace.get();
+        int rows = image.rows();
+        int cols = image.cols();
+        long pixels = (long) rows * cols;
+
+        long start = System.nanoTime();
+        Object stage = trace.begin(Trace.Stage.GRADIENT);
+        GradStruct gradient = getGradient(image);
+        trace.end(stage, rows, cols, pixels);
+        long gradientDone = System.nanoTime();
+        stage = trace.begin(Trace.Stage.EDGES);
+        CvMat edges = getEdges(image);
+        trace.end(stage, rows, cols, pixels);
+        long edgesDone = System.nanoTime();
+        stage = trace.begin(Trace.Stage.COST_SUM);
+        CvMat sum = getInverseWeightedSum(gradient, edges,
+                GRADIENT_WEIGHT, EDGE_WEIGHT, DIRECTION_WEIGHT);
+        trace.end(stage, rows, cols, pixels);
+        Metrics.histogram(Metrics.GRADIENT_NANOS).record(gradientDone - start);
+        Metrics.histogram(Metrics.EDGES_NANOS).record(edgesDone - gradientDone);
+        Metrics.histogram(Metrics.SUM_NANOS).record(System.nanoTime() - edgesDone);
+        return sum;
+    }
+
+    /**
+     * Exracts the gradient x and y components, gradient magnitude, and gradient
+     * direction features from the specified image.
+     *
+     * @return a structure containing the gradient x and y components, gradient
+     * magnitude, and gradient direction
+     */
+    public static GradStruct getGradient(CvMat image) {
+        //Istantiate Gradient Mats
+        GradStruct gradient = new GradStruct();
+        gradient.x = CvMat.create(image.rows(), image.cols(), image.type());
+        gradient.y = CvMat.create(image.rows(), image.cols(), image.type());
+        gradient.mag = CvMat.create(image.rows(), image.cols(), image.type());
+        gradient.dir = CvMat.create(image.rows(), image.cols(), image.type());
+
+        //Copy image and convert to 16-bit signed data
+        CvMat temp = CvMat.create(image.rows(), image.cols(), opencv_core.CV_16S, 1);
+        temp.put(image);
+
+        //Blur image to reduce noise
+        opencv_imgproc.GaussianBlur(
+                temp, temp,
+                new opencv_core.CvSize(BLUR_SIZE, BLUR_SIZE),
+                0, 0,
+                opencv_imgproc.BORDER_DEFAULT
+        );
+
+        CvMat gx = CvMat.create(image.rows(), image.cols(), opencv_core.CV_16S, 1);
+        CvMat gy = CvMat.create(image.rows(), image.cols(), opencv_core.CV_16S, 1);
+        int ddepth = opencv_core.CV_16SC1;
+        int scale = 1;
+        int delta = 0;
+
+        /*//LAPLACIAN
+        opencv_imgproc.Laplacian(temp, gradient.mag, -1, 5, 1, 0,
+        opencv_imgproc.BORDER_DEFAULT);
+        opencv_core.cvNot(gradient.mag, gradient.mag);*/
+
+        //SOBEL get Gx and Gy
+        opencv_imgproc.Sobel(temp, gx, ddepth, 1, 0, SOBEL_APERTURE,
+                scale, delta, opencv_imgproc.BORDER_DEFAULT);
+        opencv_imgproc.Sobel(temp, gy, ddepth, 0, 1, SOBEL_APERTURE,
+                scale, delta, opencv_imgproc.BORDER_DEFAULT);
+
+        //Scale and shift Gx and Gy values for viewing, and get Gradient Magnitude
+        opencv_core.cvConvertScale(gx, gradient.x, 1.0 / 2.0, 128);
+        opencv_core.cvConvertScale(gy, gradient.y, 1.0 / 2.0, 128);
+        CvMat gxMag = CvMat.create(image.rows(), image.cols(), opencv_core.CV_8U, 1);
+        CvMat gyMag = CvMat.create(image.rows(), image.cols(), opencv_core.CV_8U, 1);
+        opencv_core.cvConvertScaleAbs(gx, gxMag, 1, 0);
+        opencv_core.cvConvertScaleAbs(gy, gyMag, 1, 0);
+        opencv_core.cvAddWeighted(gxMag, 1.0, gyMag, 1.0, 0, gradient.mag);
+
+        //Get Gradient Direction, reading and writing the mats' memory directly
+        CvMat dir = CvMat.create(image.rows(), image.cols(), opencv_core.CV_16U, 1);
+        ImageBuffer gxBuf = ImageBuffer.wrap(gx);
+        ImageBuffer gyBuf = ImageBuffer.wrap(gy);
+        ImageBuffer dirBuf = ImageBuffer.wrap(dir);
+        for (int i = 0; i < image.rows(); i++) {
+            for (int j = 0; j < image.cols(); j++) {
+                float angle = (float) Math.toDegrees(Math.atan2(
+                        gyBuf.getShort(i, j), gxBuf.getShort(i, j)));
+                dirBuf.putShort(i, j, (int) angle);
+            }
+        }
+        gradient.dir.put(dir);
+
+        return gradient;
+    }
+
+    /**
+     * Uses the OpenCv Canny Edge detector to extractor the edge features from the
+     * image
+     *
+     * @return the edge features of the image
+     */
+    public static CvMat getEdges(CvMat image) {
+        CvMat edges = CvMat.create(image.rows(), image.cols(), opencv_core.CV_8U, 1);
+        edges.put(image);
+        opencv_imgproc.GaussianBlur(
+                edges, edges,
+                new opencv_core.CvSize(BLUR_SIZE, BLUR_SIZE),
+                0, 0,
+                opencv_imgproc.BORDER_DEFAULT
+        );
+        opencv_imgproc.Canny(edges, edges, CANNY_LOW, CANNY_HIGH, CANNY_APERTURE, true);
+
+        return edges;
+    }
+
+    /**
+     * Calculates the inverse of the weighted sum of the gradient and edge features.
+     *
+     * @param grad  a structure containing the gradient x and y components, the
+     *              gradient magnitude, and the gradient direction features
+     * @param edges the edge features
+     * @param wg    the weight to apply to the gradient magnitude feature
+     * @param wz    the weight to apply to the edge feature
+     * @param wd    the weight to apply to the gradient direction feature
+     * @return the inverse-weighted-sum of the features
+     */
+    public static CvMat getInverseWeightedSum(
+            GradStruct grad, CvMat edges, float wg, float wz, float wd)
+    {
+        int rows = grad.mag.rows();
+        int cols = grad.mag.cols();
+        CvMat sum = CvMat.create(rows, cols, grad.mag.type(), 1);
+        CvMat gradMag = CvMat.create(rows, cols, opencv_core.CV_8U, 1);
+        CvMat graddir = CvMat.create(rows, cols, opencv_core.CV_8U, 1);
+        CvMat gEdges = CvMat.create(rows, cols, opencv_core.CV_8U, 1);
+        opencv_core.cvScale(grad.mag, gradMag, wg, 0.0);
+        opencv_core.cvScale(grad.dir, graddir, wd, 0.0);
+        opencv_core.cvScale(edges, gEdges, wz, 0.0);
+
+        opencv_core.cvAdd(gradMag, graddir, sum, null);
+        opencv_core.cvAdd(sum, gEdges, sum, null);
+        opencv_core.cvNot(sum, sum);
+
+        return sum;
+    }
+}
@@ -0,0 +1,53 @@
+package livewire;
+
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+
+
+/**
+ * A Display that shows nothing, for replaying recorded sessions and for
+ * running without a screen. The live-wire is still walked from the cursor
+ * to the seed, as a drawing display would, so the path work is measured.
+ *
+ * @author James Gomez
+ */
+public class HeadlessDisplay implements Display
+{
+    @Override
+    public int drawLiveWire(LivewireEngine engine, int start, int end) {
+        int length = 1;
+        while (start != end && engine.parent(start) != CostMap.NONE) {
+            start = engine.parent(start);
+            length++;
+        }
+        return length;
+    }
+
+    @Override
+    public void drawCoolWire(Boundary boundary) {
+    }
+
+    @Override
+    public void clear() {
+    }
+
+    @Override
+    public void show() {
+    }
+
+    @Override
+    public void showImage(String title, CvMat image, int x, int y) {
+    }
+
+    @Override
+    public void closeImage(String title) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean waitKey(int delay) {
+        return false;
+    }
+}
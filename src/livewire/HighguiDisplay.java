@@ -0,0 +1,77 @@
+package livewire;
+
+import com.googlecode.javacpp.Pointer;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_highgui;
+import com.googlecode.javacv.cpp.opencv_highgui.CvMouseCallback;
+
+
+/**
+ * A Display that draws into OpenCV mats with a WireRenderer and shows them in
+ * highgui windows.
+ *
+ * @author James Gomez
+ */
+public class HighguiDisplay implements Display
+{
+    private final String title;
+    private final WireRenderer renderer;
+    /** kept referenced so the native callback is not garbage collected */
+    private final CvMouseCallback callback;
+
+    public HighguiDisplay(String title, CvMat image, final EventQueue events) {
+        this.title = title;
+        renderer = new WireRenderer(image);
+        callback = new CvMouseCallback()
+        {
+            @Override
+            public void call(int event, int x, int y, int flags, Pointer param) {
+                //off-image positions, reported while dragging past the edge, are clamped by the queue
+                events.post(event, x, y);
+            }
+        };
+        LivewireApp.showImage(title, image, 100, 100);
+        opencv_highgui.cvSetMouseCallback(title, callback, null);
+    }
+
+    @Override
+    public int drawLiveWire(LivewireEngine engine, int start, int end) {
+        return renderer.drawLiveWire(engine, start, end);
+    }
+
+    @Override
+    public void drawCoolWire(Boundary boundary) {
+        renderer.drawCoolWire(boundary);
+    }
+
+    @Override
+    public void clear() {
+        renderer.clear();
+    }
+
+    @Override
+    public void show() {
+        opencv_highgui.cvShowImage(title, renderer.image());
+    }
+
+    @Override
+    public void showImage(String title, CvMat image, int x, int y) {
+        LivewireApp.showImage(title, image, x, y);
+    }
+
+    @Override
+    public void closeImage(String title) {
+        opencv_highgui.cvDestroyWindow(title);
+    }
+
+    @Override
+    public void close() {
+        //the app's windows are all opened through its display
+        opencv_highgui.cvDestroyAllWindows();
+    }
+
+    @Override
+    public boolean waitKey(int delay) {
+        return opencv_highgui.cvWaitKey(delay) >= 0;
+    }
+}
@@ -0,0 +1,112 @@
+package livewire;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A lock-free histogram of non-negative long values, such as durations in
+ * nanoseconds. Values are counted in log-linear buckets (four per power of
+ * two), so percentiles are accurate to within about 20% while recording
+ * costs only a few atomic increments.
+ *
+ * @author James Gomez
+ */
+public class Histogram implements HistogramMBean
+{
+    /** four sub-buckets for each of the 63 powers of two a long can hold */
+    private static final int BUCKETS = 4 * 63;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Records a value; negative values are recorded as zero */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value))
+            m = max.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long getP50() {
+        return percentile(50);
+    }
+
+    @Override
+    public long getP90() {
+        return percentile(90);
+    }
+
+    @Override
+    public long getP99() {
+        return percentile(99);
+    }
+
+    /**
+     * @return an upper bound of the given percentile (0 to 100) of the recorded
+     * values, or 0 if nothing has been recorded
+     */
+    public long percentile(double p) {
+        long n = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        if (n == 0) return 0;
+
+        long rank = (long) Math.ceil(p / 100 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1))
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private static int bucket(long value) {
+        if (value < 4) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - 2)) & 3;
+        return 4 * (exp - 1) + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < 4) return bucket;
+        int exp = bucket / 4 + 1;
+        long sub = bucket % 4;
+        return ((4 + sub + 1) << (exp - 2)) - 1;
+    }
+}
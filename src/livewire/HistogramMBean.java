@@ -0,0 +1,25 @@
+package livewire;
+
+
+/**
+ * The JMX management interface of a Histogram.
+ *
+ * @author James Gomez
+ */
+public interface HistogramMBean
+{
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    /** Clears all recorded values */
+    void reset();
+}
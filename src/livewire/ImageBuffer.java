@@ -0,0 +1,198 @@
+package livewire;
+
+import com.googlecode.javacpp.BytePointer;
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * ImageBuffer is an image whose pixels live in a direct (off-heap)
+ * ByteBuffer. The same memory can be handed to OpenCV as a CvMat header and
+ * read or written by the Java side through the buffer, so cost images, masks
+ * and overlays can move between native and Java stages without being copied
+ * element by element.
+ *
+ * @author James Gomez
+ */
+public class ImageBuffer
+{
+    private final int rows;
+    private final int cols;
+    private final int type;
+    private final int step;
+    private final int elemSize;
+    private final ByteBuffer data;
+    /** the CvMat header sharing this buffer, created on first use */
+    private CvMat mat;
+    /** keeps the native pointer behind the CvMat header reachable */
+    private BytePointer pointer;
+
+    private ImageBuffer(ByteBuffer data, int rows, int cols, int type, int step) {
+        this.rows = rows;
+        this.cols = cols;
+        this.type = type & opencv_core.CV_MAT_TYPE_MASK;
+        this.step = step;
+        this.elemSize = elemSize(type);
+        this.data = data.duplicate().order(ByteOrder.nativeOrder());
+        this.data.clear();
+    }
+
+    /** Allocates a zeroed off-heap image of the given size and CvMat type */
+    public static ImageBuffer allocate(int rows, int cols, int type) {
+        int step = cols * elemSize(type);
+        ByteBuffer data = ByteBuffer.allocateDirect(rows * step);
+        return new ImageBuffer(data, rows, cols, type, step);
+    }
+
+    /**
+     * Wraps the pixel data of an existing CvMat. No pixels are copied; writes
+     * through either view are visible to the other.
+     */
+    public static ImageBuffer wrap(CvMat image) {
+        ImageBuffer buffer = new ImageBuffer(image.getByteBuffer(),
+                image.rows(), image.cols(), image.type(), image.step());
+        buffer.mat = image;
+        return buffer;
+    }
+
+    /**
+     * Wraps a direct buffer (for example a memory-mapped file) holding
+     * continuous rows of pixels of the given CvMat type.
+     */
+    public static ImageBuffer wrap(ByteBuffer data, int rows, int cols, int type) {
+        if (!data.isDirect())
+            throw new IllegalArgumentException("ImageBuffer requires a direct buffer");
+        return new ImageBuffer(data, rows, cols, type,
+                cols * elemSize(type));
+    }
+
+    /**
+     * @return a view of a rectangle of this image, sharing its pixels; writes
+     * through either are visible to the other
+     */
+    public ImageBuffer region(int row, int col, int rows, int cols) {
+        if (row < 0 || col < 0 || rows <= 0 || cols <= 0 ||
+                row + rows > this.rows || col + cols > this.cols)
+            throw new IndexOutOfBoundsException("region " + cols + "x" + rows + " at (" +
+                    row + "," + col + ") of a " + this.cols + "x" + this.rows + " image");
+        ByteBuffer view = data.duplicate();
+        view.position(offset(row, col));
+        return new ImageBuffer(view.slice(), rows, cols, type, step);
+    }
+
+    /**
+     * @return the size in bytes of one pixel of the given CvMat type. Computed
+     * here rather than through opencv_core so that purely Java users of this
+     * class do not need the native libraries loaded.
+     */
+    public static int elemSize(int type) {
+        int channels = 1 + ((type & opencv_core.CV_MAT_CN_MASK) >> opencv_core.CV_CN_SHIFT);
+        switch (type & opencv_core.CV_MAT_DEPTH_MASK) {
+            case opencv_core.CV_16U:
+            case opencv_core.CV_16S: return 2 * channels;
+            case opencv_core.CV_32S:
+            case opencv_core.CV_32F: return 4 * channels;
+            case opencv_core.CV_64F: return 8 * channels;
+            default: return channels;
+        }
+    }
+
+    /**
+     * @return a CvMat header over this buffer's memory. The header is created
+     * once and shared by all callers.
+     */
+    public CvMat asCvMat() {
+        if (mat == null) {
+            pointer = new BytePointer(data);
+            mat = opencv_core.cvMat(rows, cols, type, pointer);
+            mat.step(step);
+        }
+        return mat;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    /** @return the CvMat type code of the pixels */
+    public int type() {
+        return type;
+    }
+
+    /** @return the number of channels per pixel */
+    public int channels() {
+        return 1 + ((type & opencv_core.CV_MAT_CN_MASK) >> opencv_core.CV_CN_SHIFT);
+    }
+
+    /** @return the number of bytes between the starts of consecutive rows */
+    public int step() {
+        return step;
+    }
+
+    /** @return a view of the raw pixel bytes in native byte order */
+    public ByteBuffer buffer() {
+        return data.duplicate().order(ByteOrder.nativeOrder());
+    }
+
+    /** @return the byte offset of the first channel of the given pixel */
+    public int offset(int row, int col) {
+        return row * step + col * elemSize;
+    }
+
+    /** @return the unsigned 8-bit value of the given pixel */
+    public int get(int row, int col) {
+        return data.get(row * step + col * elemSize) & 0xFF;
+    }
+
+    /** Stores an 8-bit value into the given pixel */
+    public void put(int row, int col, int value) {
+        data.put(row * step + col * elemSize, (byte) value);
+    }
+
+    /** @return the signed 16-bit value of the given pixel */
+    public short getShort(int row, int col) {
+        return data.getShort(row * step + col * elemSize);
+    }
+
+    /** Stores a 16-bit value into the given pixel */
+    public void putShort(int row, int col, int value) {
+        data.putShort(row * step + col * elemSize, (short) value);
+    }
+
+    /** Sets every byte of the image to zero */
+    public void clear() {
+        ByteBuffer b = buffer();
+        while (b.remaining() >= ZEROS.length)
+            b.put(ZEROS);
+        b.put(ZEROS, 0, b.remaining());
+    }
+
+    /**
+     * Writes the pixels, row after row and without the rows' padding, to a
+     * channel at the given position
+     *
+     * @return the position after the last pixel
+     */
+    public long write(FileChannel channel, long position) throws IOException {
+        int rowBytes = cols * elemSize;
+        for (int i = 0; i < rows; i++) {
+            ByteBuffer row = buffer();
+            row.position(offset(i, 0));
+            row.limit(offset(i, 0) + rowBytes);
+            while (row.hasRemaining())
+                position += channel.write(row, position);
+        }
+        return position;
+    }
+
+    private static final byte[] ZEROS = new byte[4096];
+}
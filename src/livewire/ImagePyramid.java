@@ -0,0 +1,140 @@
+package livewire;
+
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_imgproc;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * ImagePyramid holds an image at successively halved resolutions and serves
+ * it as fixed-size display tiles. Tiles are converted to BufferedImages only
+ * when first requested and are kept in a bounded least-recently-used cache,
+ * so displaying a viewport of a huge image costs work in proportion to the
+ * screen size rather than the image size.
+ *
+ * @author James Gomez
+ */
+public class ImagePyramid
+{
+    /** the width and height of a display tile, in pixels */
+    public static final int TILE = 256;
+
+    private final ImageBuffer[] levels;
+    private final Map<Long, BufferedImage> tiles;
+
+    /**
+     * Builds the pyramid for an 8-bit grayscale, BGR or BGRA image. Levels are
+     * added until the coarsest one fits in a single tile.
+     *
+     * @param maxTiles the maximum number of converted tiles kept in memory
+     */
+    public ImagePyramid(CvMat image, final int maxTiles) {
+        int count = 1;
+        for (int r = image.rows(), c = image.cols(); r > TILE || c > TILE; count++) {
+            r = (r + 1) / 2;
+            c = (c + 1) / 2;
+        }
+
+        levels = new ImageBuffer[count];
+        CvMat level = image;
+        levels[0] = ImageBuffer.wrap(level);
+        for (int i = 1; i < count; i++) {
+            CvMat next = CvMat.create((level.rows() + 1) / 2,
+                    (level.cols() + 1) / 2, level.type());
+            opencv_imgproc.cvPyrDown(level, next, opencv_imgproc.CV_GAUSSIAN_5x5);
+            levels[i] = ImageBuffer.wrap(next);
+            level = next;
+        }
+
+        tiles = new LinkedHashMap<Long, BufferedImage>(2 * maxTiles, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+                return size() > maxTiles;
+            }
+        };
+    }
+
+    /** @return the number of levels; level 0 is the full resolution image */
+    public int levels() {
+        return levels.length;
+    }
+
+    public int rows(int level) {
+        return levels[level].rows();
+    }
+
+    public int cols(int level) {
+        return levels[level].cols();
+    }
+
+    /** @return the tile at column tx and row ty of the given level */
+    public BufferedImage tile(int level, int tx, int ty) {
+        long key = ((long) level << 48) | ((long) ty << 24) | tx;
+        BufferedImage tile = tiles.get(key);
+        if (tile == null) {
+            ImageBuffer pixels = levels[level];
+            int x = tx * TILE;
+            int y = ty * TILE;
+            tile = toImage(pixels, x, y,
+                    Math.min(TILE, pixels.cols() - x),
+                    Math.min(TILE, pixels.rows() - y));
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    /** Converts a whole 8-bit grayscale, BGR or BGRA mat into a BufferedImage */
+    public static BufferedImage toImage(CvMat image) {
+        return toImage(ImageBuffer.wrap(image), 0, 0, image.cols(), image.rows());
+    }
+
+    /**
+     * Converts a region of an 8-bit grayscale, BGR or BGRA image into a
+     * BufferedImage that is compatible with the screen, so Java2D can cache it
+     * in video memory.
+     */
+    public static BufferedImage toImage(ImageBuffer pixels, int x, int y,
+                                        int width, int height)
+    {
+        int channels = pixels.channels();
+        ByteBuffer data = pixels.buffer();
+
+        int[] rgb = new int[width * height];
+        for (int i = 0; i < height; i++) {
+            int offset = pixels.offset(y + i, x);
+            for (int j = 0; j < width; j++) {
+                int k = offset + j * channels;
+                if (channels == 1) {
+                    int v = data.get(k) & 0xFF;
+                    rgb[i * width + j] = v << 16 | v << 8 | v;
+                }
+                else {
+                    rgb[i * width + j] = (data.get(k + 2) & 0xFF) << 16 |
+                            (data.get(k + 1) & 0xFF) << 8 | data.get(k) & 0xFF;
+                }
+            }
+        }
+
+        BufferedImage result;
+        if (GraphicsEnvironment.isHeadless()) {
+            result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        else {
+            GraphicsConfiguration config = GraphicsEnvironment
+                    .getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDefaultConfiguration();
+            result = config.createCompatibleImage(width, height, Transparency.OPAQUE);
+        }
+        //setRGB keeps the image eligible for video memory caching
+        result.setRGB(0, 0, width, height, rgb, 0, width);
+        return result;
+    }
+}
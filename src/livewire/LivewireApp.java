@@ -1,23 +1,13 @@
 package livewire;
 
-import com.googlecode.javacpp.Loader;
-import com.googlecode.javacpp.Pointer;
 import com.googlecode.javacv.cpp.opencv_core;
 import com.googlecode.javacv.cpp.opencv_core.CvMat;
-import com.googlecode.javacv.cpp.opencv_core.CvPoint;
-import com.googlecode.javacv.cpp.opencv_core.CvPoint2D32f;
-import com.googlecode.javacv.cpp.opencv_core.CvScalar;
-import com.googlecode.javacv.cpp.opencv_core.CvSeq;
-import com.googlecode.javacv.cpp.opencv_core.CvMemStorage;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import com.googlecode.javacv.cpp.opencv_highgui;
-import com.googlecode.javacv.cpp.opencv_highgui.CvMouseCallback;
-import com.googlecode.javacv.cpp.opencv_imgproc;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
 
 /**
  * <p>An implementation of the "Live-Wire" image segmentation tool, also known as
@@ -31,34 +21,37 @@ import java.util.List;
 public class LivewireApp
 {
     private static final String APP_TITLE = "Live-Wire App";
+    /** How long each frame waits for GUI events, in milliseconds (~60 fps) */
+    private static final int FRAME_DELAY = 16;
     /** Stores an unaltered copy of the original user specified image */
     private CvMat origImage;
     /** A grayscale copy of the origImage for manipulation and feature extraction */
     private CvMat image;
-    /** Used for generating and storing least cost boundaries within the image */
-    private CostMap costMap;
-
-    /**
-     * A structure used to store the gradient x and y components, gradient magnitude,
-     * and gradient direction features of an image.
-     */
-    private class GradStruct
-    {
-        /** The x-component of the image gradient */
-        public CvMat x;
-        /** The y-component of the image gradient */
-        public CvMat y;
-        /** The gradient magnitude of the image */
-        public CvMat mag;
-        /** The gradient direction of the image */
-        public CvMat dir;
-    }
+    /** The segmentation session: cost data, seeds and boundary */
+    private LivewireEngine engine;
+    /** Shows the image and wires and reports mouse events */
+    private Display display;
+    /** Whether to display through a Java2D canvas instead of highgui */
+    private boolean useCanvas;
+    /** Where to record the session's mouse events, if anywhere */
+    private File recordFile;
+    /** The image file, and where its cost image is cached, if anywhere */
+    private final File file;
+    private FeatureCache cache;
+    /** Where the session is resumed from and saved to on exit, if anywhere */
+    private File snapshotFile;
+    /** The most memory the expansion may take before it is downsampled, or -1 */
+    private long memoryLimit = -1;
 
     public LivewireApp(String path) {
+        file = new File(path);
         try {
+            Object trace = Trace.get().begin(Trace.Stage.IMAGE_LOAD);
             IplImage temp = opencv_highgui.cvLoadImageBGRA(path);
             origImage = temp.asCvMat();
             image = opencv_highgui.cvLoadImageM(path, opencv_core.CV_8U);
+            Trace.get().end(trace, image.rows(), image.cols(),
+                    (long) image.rows() * image.cols());
             System.out.println("Loaded image \"" + path + "\" type:" +
                     typeToString(origImage.type()));
         }
@@ -68,139 +61,207 @@ public class LivewireApp
         }
     }
 
+    /** Creates the application on an image loaded ahead by a Worklist */
+    public LivewireApp(Worklist.Item item) {
+        file = item.file;
+        origImage = item.color;
+        image = item.gray;
+        engine = item.engine;
+    }
+
     /**
      * Initializes application classes and structures and creates the application
-     * GUI
+     * GUI, which runs until a key is pressed
      */
     public void run() {
-        GradStruct gradient = getGradient(image);
-        CvMat edges = getEdges(image);
-        CvMat sum = getInverseWeightedSum(gradient, edges, 0.80f, 0.25f, 0.15f);
-        costMap = new CostMap(sum);
+        if (engine == null) engine = resume();
+        if (engine == null) engine = new LivewireEngine(costImage());
+        if (memoryLimit > 0) engine.setMemoryLimit(memoryLimit);
+        engine.setExpansionListener(new ConsoleExpansionListener());
 //        showFeatures(gradient, edges, sum);
 
-        showImage(APP_TITLE, origImage, 100, 100);
-        opencv_highgui.cvSetMouseCallback(APP_TITLE, new MouseCallback(), null);
-        opencv_highgui.cvWaitKey(0);
+        EventQueue events = new EventQueue(origImage.rows(), origImage.cols());
+        MouseTrace.Recorder recorder = null;
+        if (recordFile != null) {
+            try {
+                recorder = new MouseTrace.Recorder(recordFile, origImage.rows(), origImage.cols());
+                events.setRecorder(recorder);
+            }
+            catch (IOException e) {
+                System.out.println("WARNING: could not record mouse trace " +
+                        recordFile + ": " + e.getMessage());
+            }
+        }
+        if (useCanvas)
+            display = new CanvasDisplay(APP_TITLE, origImage, events);
+        else
+            display = new HighguiDisplay(APP_TITLE, origImage, events);
+        MouseCallback mouse = new MouseCallback(events);
+        if (!engine.boundary().isEmpty()) {
+            display.drawCoolWire(engine.boundary());
+            if (engine.isClosed()) mouse.extractBoundarySegment();
+            display.show();
+        }
+
+        //mouse events are delivered during waitKey and handled once per frame
+        while (!display.waitKey(FRAME_DELAY))
+            mouse.update();
+        display.close();
+        if (snapshotFile != null) {
+            try {
+                SessionSnapshot.save(engine, snapshotFile);
+                System.out.println("Saved session to " + snapshotFile);
+            }
+            catch (IOException e) {
+                System.out.println("WARNING: could not save session " + snapshotFile +
+                        ": " + e.getMessage());
+            }
+        }
+        System.out.println("Dropped " + events.dropped() + " stale mouse events");
+        if (recorder != null) recorder.close();
     }
 
     /**
-     * Exracts the gradient x and y components, gradient magnitude, and gradient
-     * direction features from the specified image.
+     * Feeds a recorded session through the full pipeline (seeding, live-wire,
+     * cooling, closing and segment extraction) without a display, and reports
+     * the latency of each frame and the memory allocated. Events are posted
+     * at their recorded times and handled once per frame, FRAME_DELAY apart
+     * as in the window's loop, so moves that arrive within one frame, or
+     * while a frame is being handled, coalesce as they did live. A frame's
+     * latency runs from the recorded time of its oldest event.
      *
-     * @return a structure containing the gradient x and y components, gradient
-     * magnitude, and gradient direction
+     * @return the per-frame latencies, in nanoseconds
      */
-    private GradStruct getGradient(CvMat image) {
-        //Istantiate Gradient Mats
-        GradStruct gradient = new GradStruct();
-        gradient.x = CvMat.create(image.rows(), image.cols(), image.type());
-        gradient.y = CvMat.create(image.rows(), image.cols(), image.type());
-        gradient.mag = CvMat.create(image.rows(), image.cols(), image.type());
-        gradient.dir = CvMat.create(image.rows(), image.cols(), image.type());
-
-        //Copy image and convert to 16-bit signed data
-        CvMat temp = CvMat.create(image.rows(), image.cols(), opencv_core.CV_16S, 1);
-        temp.put(image);
-
-        //Blur image to reduce noise
-        opencv_imgproc.GaussianBlur(
-                temp, temp,
-                new opencv_core.CvSize(3, 3),
-                0, 0,
-                opencv_imgproc.BORDER_DEFAULT
-        );
-
-        CvMat gx = CvMat.create(image.rows(), image.cols(), opencv_core.CV_16S, 1);
-        CvMat gy = CvMat.create(image.rows(), image.cols(), opencv_core.CV_16S, 1);
-        int ddepth = opencv_core.CV_16SC1;
-        int scale = 1;
-        int delta = 0;
-
-        /*//LAPLACIAN
-        opencv_imgproc.Laplacian(temp, gradient.mag, -1, 5, 1, 0,
-        opencv_imgproc.BORDER_DEFAULT);
-        opencv_core.cvNot(gradient.mag, gradient.mag);*/
-
-        //SOBEL get Gx and Gy
-        opencv_imgproc.Sobel(temp, gx, ddepth, 1, 0, 3,
-                scale, delta, opencv_imgproc.BORDER_DEFAULT);
-        opencv_imgproc.Sobel(temp, gy, ddepth, 0, 1, 3,
-                scale, delta, opencv_imgproc.BORDER_DEFAULT);
-
-        //Scale and shift Gx and Gy values for viewing, and get Gradient Magnitude
-        opencv_core.cvConvertScale(gx, gradient.x, 1.0 / 2.0, 128);
-        opencv_core.cvConvertScale(gy, gradient.y, 1.0 / 2.0, 128);
-        CvMat gxMag = CvMat.create(image.rows(), image.cols(), opencv_core.CV_8U, 1);
-        CvMat gyMag = CvMat.create(image.rows(), image.cols(), opencv_core.CV_8U, 1);
-        opencv_core.cvConvertScaleAbs(gx, gxMag, 1, 0);
-        opencv_core.cvConvertScaleAbs(gy, gyMag, 1, 0);
-        opencv_core.cvAddWeighted(gxMag, 1.0, gyMag, 1.0, 0, gradient.mag);
-
-        //Get Gradient Direction
-        CvMat dir = CvMat.create(image.rows(), image.cols(), opencv_core.CV_16U, 1);
-        for (int i = 0; i < image.rows(); i++) {
-            for (int j = 0; j < image.cols(); j++) {
-                float angle = (float) Math.toDegrees(Math.atan2(gy.get(i, j),
-                        gx.get(i, j)));
-                dir.put(i, j, angle);
+    public Histogram replay(MouseTrace trace) {
+        if (trace.rows() != origImage.rows() || trace.cols() != origImage.cols())
+            System.out.println("WARNING: trace was recorded on a " + trace.cols() +
+                    "x" + trace.rows() + " image");
+
+        engine = new LivewireEngine(costImage());
+        if (memoryLimit > 0) engine.setMemoryLimit(memoryLimit);
+        EventQueue events = new EventQueue(origImage.rows(), origImage.cols());
+        display = new HeadlessDisplay();
+        MouseCallback mouse = new MouseCallback(events);
+        Histogram latency = new Histogram();
+
+        long allocated = Metrics.allocatedBytes();
+        long start = System.nanoTime();
+        long frame = FRAME_DELAY * 1000000L;
+        long next = start;
+        int frames = 0;
+        int i = 0;
+        while (i < trace.size()) {
+            //skip the frames in which nothing happened
+            long due = start + trace.time(i);
+            if (due > next) next += (due - next + frame - 1) / frame * frame;
+            sleepUntil(next);
+
+            long now = System.nanoTime();
+            int first = i;
+            while (i < trace.size() && start + trace.time(i) <= now) {
+                events.post(trace.event(i), trace.x(i), trace.y(i));
+                i++;
             }
+            mouse.update();
+            frames++;
+            long handled = System.nanoTime();
+            latency.record(handled - start - trace.time(first));
+            next = handled + frame;
         }
-        gradient.dir.put(dir);
+        long elapsed = System.nanoTime() - start;
+        long bytes = allocated < 0 ? -1 : Metrics.allocatedBytes() - allocated;
+
+        System.out.println("Replayed " + trace.size() + " events in " + frames + " frames in " +
+                elapsed / 1000000 + " ms, dropping " + events.dropped() + " stale mouse events");
+        System.out.println("Latency p50:" + millis(latency.getP50()) +
+                " p99:" + millis(latency.getP99()) +
+                " max:" + millis(latency.getMax()) + " ms");
+        System.out.println("Allocated " + (bytes < 0 ? "(unknown)" : bytes + " bytes"));
+        return latency;
+    }
 
-        return gradient;
+    /** Sleeps until System.nanoTime() reaches the given time */
+    private static void sleepUntil(long nanoTime) {
+        long wait;
+        while ((wait = nanoTime - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
     }
 
     /**
-     * Uses the OpenCv Canny Edge detector to extractor the edge features from the
-     * image
-     *
-     * @return the edge features of the image
+     * @return the session saved in the snapshot file, or null if there is
+     * none or it does not fit the image
      */
-    private CvMat getEdges(CvMat image) {
-        CvMat edges = CvMat.create(image.rows(), image.cols(), opencv_core.CV_8U, 1);
-        edges.put(image);
-        opencv_imgproc.GaussianBlur(
-                edges, edges,
-                new opencv_core.CvSize(3, 3),
-                0, 0,
-                opencv_imgproc.BORDER_DEFAULT
-        );
-        opencv_imgproc.Canny(edges, edges, 15, 45, 3, true);
-
-        return edges;
+    private LivewireEngine resume() {
+        if (snapshotFile == null || !snapshotFile.isFile()) return null;
+        try {
+            long start = System.nanoTime();
+            LivewireEngine resumed = SessionSnapshot.load(snapshotFile);
+            if (resumed.rows() != image.rows() || resumed.cols() != image.cols()) {
+                System.out.println("WARNING: session " + snapshotFile + " was saved on a " +
+                        resumed.cols() + "x" + resumed.rows() + " image; starting afresh");
+                return null;
+            }
+            System.out.println("Resumed session from " + snapshotFile + " in " +
+                    (System.nanoTime() - start) / 1000000 + " ms");
+            return resumed;
+        }
+        catch (IOException e) {
+            System.out.println("WARNING: could not resume session " + snapshotFile +
+                    ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** @return the image's cost image, from the feature cache if one is set */
+    private ImageBuffer costImage() {
+        if (cache != null) {
+            try {
+                return cache.costs(file, image);
+            }
+            catch (IOException e) {
+                System.out.println("WARNING: could not use feature cache: " + e.getMessage());
+            }
+        }
+        return ImageBuffer.wrap(Features.costImage(image));
+    }
+
+    /** Reads and stores the cost image in the given cache; null disables it */
+    public void setFeatureCache(FeatureCache cache) {
+        this.cache = cache;
+    }
+
+    /** Selects the Java2D canvas display instead of highgui windows */
+    public void setUseCanvas(boolean useCanvas) {
+        this.useCanvas = useCanvas;
     }
 
     /**
-     * Calculates the inverse of the weighted sum of the gradient and edge features.
-     *
-     * @param grad  a structure containing the gradient x and y components, the
-     *              gradient magnitude, and the gradient direction features
-     * @param edges the edge features
-     * @param wg    the weight to apply to the gradient magnitude feature
-     * @param wz    the weight to apply to the edge feature
-     * @param wd    the weight to apply to the gradient direction feature
-     * @return the inverse-weighted-sum of the features
+     * Resumes the session saved in the given snapshot file, if it exists, and
+     * saves the session to it when the app exits
      */
-    private CvMat getInverseWeightedSum(
-            GradStruct grad, CvMat edges, float wg, float wz, float wd)
-    {
-        CvMat sum = CvMat.create(image.rows(), image.cols(), image.type(), 1);
-        CvMat gradMag = CvMat.create(image.rows(), image.cols(),
-                opencv_core.CV_8U, 1);
-        CvMat graddir = CvMat.create(image.rows(), image.cols(),
-                opencv_core.CV_8U, 1);
-        CvMat gEdges = CvMat.create(image.rows(), image.cols(), opencv_core.CV_8U,
-                1);
-        opencv_core.cvScale(grad.mag, gradMag, wg, 0.0);
-        opencv_core.cvScale(grad.dir, graddir, wd, 0.0);
-        opencv_core.cvScale(edges, gEdges, wz, 0.0);
-
-        opencv_core.cvAdd(gradMag, graddir, sum, null);
-        opencv_core.cvAdd(sum, gEdges, sum, null);
-        opencv_core.cvNot(sum, sum);
-
-        return sum;
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /** Sets the most memory the expansion may take before it is downsampled */
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /** Records the mouse events of the next run to the given trace file */
+    public void setRecordFile(File recordFile) {
+        this.recordFile = recordFile;
     }
 
     /**
@@ -233,7 +294,7 @@ public class LivewireApp
      * Shows the Gradient, edge, and weighted sum features extracted from the
      * original image, if available.
      */
-    private void showFeatures(GradStruct gradient, CvMat edges, CvMat sum) {
+    private void showFeatures(Features.GradStruct gradient, CvMat edges, CvMat sum) {
         if (gradient != null) {
             if (gradient.x != null)
                 showImage(GRAD_X_TITLE, gradient.x, 600, 100);
@@ -278,221 +339,323 @@ public class LivewireApp
     }
 
     /**
-     * An implementation of the CvMouseCallback for capturing mouse events within the
-     * Livewire application
+     * Handles the mouse events captured by the display within the Livewire
+     * application
      */
-    private class MouseCallback extends CvMouseCallback
+    private class MouseCallback
     {
-        private boolean seedset;
-        private boolean closed;
-        private CvPoint currentPoint;
-        private CvPoint nextPoint;
-        private CostMap.Node seedNode;
-        private CvMat livewire;
-        private CvMat coolwire;
-        private CvMat boundaryImage;
+        private ImageBuffer boundaryImage;
+        private ImageBuffer maskImage;
         private CvMat segmentImage;
-        private List<CostMap.Node> boundary;
+        private final EventQueue events;
+        /** the type, x, y and post time of the event being handled */
+        private final long[] event = new long[4];
+        private final Histogram latency = Metrics.histogram(Metrics.EVENT_LATENCY_NANOS);
 
-        public MouseCallback() {
-            seedset = false;
-            closed = false;
+        public MouseCallback(EventQueue events) {
+            this.events = events;
 
-            currentPoint = new CvPoint();
-            nextPoint = new CvPoint();
-
-            livewire = CvMat.create(origImage.rows(), origImage.cols(),
-                    origImage.type(), origImage.channels());
-            coolwire = CvMat.create(origImage.rows(), origImage.cols(),
-                    origImage.type(), origImage.channels());
-            livewire.put(origImage);
-            coolwire.put(origImage);
-
-            boundaryImage = CvMat.create(origImage.rows(), origImage.cols(), opencv_core.CV_8U, 1);
+            boundaryImage = ImageBuffer.allocate(origImage.rows(), origImage.cols(), opencv_core.CV_8U);
+            maskImage = ImageBuffer.allocate(origImage.rows(), origImage.cols(), opencv_core.CV_8U);
             segmentImage = CvMat.create(origImage.rows(), origImage.cols(), origImage.type());
-            opencv_core.cvZero(boundaryImage);
             opencv_core.cvZero(segmentImage);
+        }
 
-            boundary = new ArrayList<CostMap.Node>(2000);
+        /**
+         * Handles the mouse events queued since the last frame, then redraws the
+         * live-wire to the latest cursor position. An event the engine refuses,
+         * e.g. at a position off the image, is reported and dropped rather
+         * than ending the session.
+         */
+        public void update() {
+            if (!events.poll(event)) return;
+            long oldest = event[3];
+            do {
+                try {
+                    handle((int) event[0], (int) event[1], (int) event[2]);
+                }
+                catch (IllegalArgumentException e) {
+                    dropped(e);
+                }
+            } while (events.poll(event));
+
+            int x = (int) event[1];
+            int y = (int) event[2];
+            Object trace = Trace.get().begin(Trace.Stage.RENDER);
+            int points = 0;
+            try {
+                if (engine.isSeeded()) points = display.drawLiveWire(engine, engine.path(x, y), engine.seed());
+            }
+            catch (IllegalArgumentException e) {
+                dropped(e);
+            }
+            display.show();
+            Trace.get().end(trace, origImage.rows(), origImage.cols(), points);
+            latency.record(System.nanoTime() - oldest);
+        }
+
+        /** Reports the event being handled as dropped because the engine refused it */
+        private void dropped(IllegalArgumentException e) {
+            System.out.println("WARNING: ignored mouse event at (" + event[1] + "," +
+                    event[2] + "): " + e.getMessage());
         }
 
         /**
-         * This method is called when mouse events are triggered on the corresponding
-         * GUI
+         * Handles a single mouse event
          *
          * @param event specifies the type of mouse event that occured
          * @param x     the x position of the mouse when this event was captured
          * @param y     the y position of the mouse when this event was captured
-         * @param flags ?
-         * @param param ?
          */
-        @Override
-        public void call(int event, int x, int y, int flags, Pointer param) {
+        private void handle(int event, int x, int y) {
             switch (event) {
                 case opencv_highgui.CV_EVENT_LBUTTONDOWN:
-                    if (!closed && !seedset || seedNode == null) {
-                        seedNode = costMap.snapToEdge(y, x, 7);
-                        costMap.addSeed(seedNode.row, seedNode.col);
-                        seedset = true;
+                    if (engine.isClosed())
+                        break;
+                    if (!engine.isSeeded()) {
+                        engine.seed(x, y);
+                    }
+                    else if (engine.cool(x, y)) {
+                        System.out.println("Boundary closed");
+                        display.drawCoolWire(engine.boundary());
+                        extractBoundarySegment();
                     }
-                    else if (!closed && seedset){
-                        CostMap.Node current = costMap.getClosestEdge(y, x);
-                        if (coolBoundary(current, seedNode)){
-                            closed = true;
-                            seedset = false;
-                            drawCoolWire();
-                            extractBoundarySegment();
-                        }
-                        else{
-                            drawCoolWire();
-                            seedNode = current;
-                            costMap.addSeed(seedNode.row, seedNode.col);
-                        }
+                    else {
+                        display.drawCoolWire(engine.boundary());
                     }
                     break;
                 case opencv_highgui.CV_EVENT_LBUTTONDBLCLK:
-                    if (closed && !seedset)
+                    if (engine.isClosed())
                         saveBoundaryAndSegment();
                     break;
                 case opencv_highgui.CV_EVENT_RBUTTONDBLCLK:
-                    seedset = false;
-                    closed = false;
                     System.out.println("Boundary cleared");
-                    opencv_highgui.cvDestroyWindow(BOUNDARY_TITLE);
-                    opencv_highgui.cvDestroyWindow(SEGMENT_TITLE);
-                    livewire.put(origImage);
-                    coolwire.put(origImage);
-                    boundary.clear();
+                    display.closeImage(BOUNDARY_TITLE);
+                    display.closeImage(SEGMENT_TITLE);
+                    display.clear();
+                    engine.clear();
                     break;
             }
-            if (seedset) drawLiveWire(costMap.getNode(y, x), seedNode);
-            opencv_highgui.cvShowImage(APP_TITLE, livewire);
-            opencv_highgui.cvWaitKey(1);
-        }
-
-        private boolean coolBoundary(CostMap.Node current, CostMap.Node lastseed){
-            boolean closed = false;
-            CostMap.Node n = current;
-            int redundantCount = 0;
-            ArrayList<CostMap.Node> buffer = new ArrayList<CostMap.Node>();
-            while (!n.equals(lastseed) && n.parent != null){
-                if (!boundary.isEmpty() && boundary.get(0).equals(n))
-                    closed = true;
-
-                if (!closed)
-                    redundantCount++;
-
-                buffer.add(n);
-                n = n.parent;
-            }
-            Collections.reverse(buffer);
-            boundary.addAll(buffer);
-
-            //remove redundant nodes
-            if (closed) {
-                boundary = boundary.subList(0, boundary.size() - redundantCount - 1);
-                System.out.println("Boundary closed");
-            }
-
-            return closed;
-        }
-
-        private void drawLiveWire(CostMap.Node start, CostMap.Node end) {
-            livewire.put(coolwire);
-            while (!start.equals(end) && start.parent != null) {
-                currentPoint.put(start.col, start.row);
-                nextPoint.put(start.parent.col, start.parent.row);
-                opencv_core.cvDrawLine(livewire, currentPoint, nextPoint,
-                        CvScalar.RED, 2, 8, 0);
-                start = start.parent;
-            }
-        }
-
-        private void drawCoolWire() {
-            CostMap.Node n;
-            for (int i = 0; i < boundary.size() -1; i++) {
-                n = boundary.get(i);
-                currentPoint.put(n.col, n.row);
-                n = boundary.get(i + 1);
-                nextPoint.put(n.col, n.row);
-                opencv_core.cvDrawLine(coolwire, currentPoint, nextPoint,
-                        CvScalar.CYAN, 2, 8, 0);
-            }
-            livewire.put(coolwire);
         }
 
         private static final String SEGMENT_TITLE = "Segment";
         private static final String BOUNDARY_TITLE = "Boundary";
         private void extractBoundarySegment(){
-            CvMat mask = CvMat.create(origImage.rows(), origImage.cols(), opencv_core.CV_8U);
-            opencv_core.cvZero(boundaryImage);
+            Object trace = Trace.get().begin(Trace.Stage.SEGMENT_EXTRACTION);
             opencv_core.cvZero(segmentImage);
-            opencv_core.cvZero(mask);
 
-            //put boundary points into binary boundary image
-            Iterator<CostMap.Node> iter = boundary.iterator();
-            while (iter.hasNext()){
-                CostMap.Node n = iter.next();
-                boundaryImage.put(n.row, n.col, 255);
-            }
-            showImage(BOUNDARY_TITLE, boundaryImage, 100, 500);
-
-            //extract boundary contour and create binary image mask
-            CvSeq contours = new CvSeq();
-            opencv_imgproc.cvFindContours(
-                    boundaryImage,
-                    CvMemStorage.create(),
-                    contours,
-                    Loader.sizeof(opencv_core.CvContour.class),
-                    opencv_imgproc.CV_RETR_LIST,
-                    opencv_imgproc.CV_CHAIN_APPROX_SIMPLE);
-            CvPoint2D32f point = new CvPoint2D32f();
-            for (int i = 0; i < boundaryImage.rows(); i++) {
-                for (int j = 0; j < boundaryImage.cols(); j++) {
-                    point.put(j, i);
-                    if (opencv_imgproc.cvPointPolygonTest(contours, point, 0) >= 0)
-                        mask.put(i, j, 255);
-                }
-            }
+            //draw the boundary and fill the mask of the segment inside it
+            engine.extract(boundaryImage, maskImage);
+            display.showImage(BOUNDARY_TITLE, boundaryImage.asCvMat(), 100, 500);
 
             //use mask to copy pixels within boundary to segmentImage
-            for (int i = 0; i < mask.rows(); i++) {
-                for (int j = 0; j < mask.cols(); j++) {
-                    if (mask.get(i, j) > 0)
-                        opencv_core.cvSet2D(
-                                segmentImage,
-                                i, j,
-                                opencv_core.cvGet2D(origImage, i, j));
-                }
-            }
-            showImage(SEGMENT_TITLE, segmentImage, 600, 100);
+            opencv_core.cvCopy(origImage, segmentImage, maskImage.asCvMat());
+            display.showImage(SEGMENT_TITLE, segmentImage, 600, 100);
+            Trace.get().end(trace, maskImage.rows(), maskImage.cols(), engine.boundary().size());
             System.out.println("Boundary and image segment extracted");
             System.out.println("To save boundary and segment, double-click LEFT mouse button over Live-wire app.");
             System.out.println("To clear current boundary, double-click RIGHT mouse button over Live-wire app.");
         }
 
         private void saveBoundaryAndSegment(){
-            opencv_highgui.cvSaveImage("boundary.jpg", boundaryImage);
+            Object trace = Trace.get().begin(Trace.Stage.SEGMENT_SAVE);
+            opencv_highgui.cvSaveImage("boundary.jpg", boundaryImage.asCvMat());
             opencv_highgui.cvSaveImage("segment.jpg", segmentImage);
+            Trace.get().end(trace, segmentImage.rows(), segmentImage.cols(), engine.boundary().size());
             System.out.println("Saved boundary and image segment");
         }
 
     }
 
-    private static final String USAGE = "USAGE: <executable> <path to image file>";
+    private static final String USAGE =
+            "USAGE: <executable> [--canvas] [--record <trace>] [--snapshot <file>]" +
+            " [--memory <MB>] <path to image file>\n" +
+            "       <executable> --replay <trace> [--p99 <millis>] [--memory <MB>]" +
+            " <path to image file>\n" +
+            "       <executable> --batch <image dir> <seed file> [--out <dir>]" +
+            " [--threads <n>] [--memory <MB>]\n" +
+            "       <executable> --serve <port> [--out <dir>] [--threads <n>]" +
+            " [--memory <MB>]\n" +
+            "       <executable> [--canvas] --worklist <image dir or list file>" +
+            " [--prefetch <n>] [--memory <MB>]\n" +
+            "Every mode accepts --cache <dir> to keep cost images between runs";
 
     /** The application's entry point */
     public static void main(String[] args) {
-        if (args.length < 1) {
+        boolean canvas = false;
+        String record = null;
+        String snapshot = null;
+        String replay = null;
+        double budget = -1;
+        String batchDir = null;
+        String seedFile = null;
+        String outDir = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long memory = -1;
+        int port = -1;
+        String worklist = null;
+        int prefetch = 2;
+        FeatureCache cache = null;
+        String path = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--canvas"))
+                canvas = true;
+            else if (args[i].equals("--record") && i + 1 < args.length)
+                record = args[++i];
+            else if (args[i].equals("--snapshot") && i + 1 < args.length)
+                snapshot = args[++i];
+            else if (args[i].equals("--replay") && i + 1 < args.length)
+                replay = args[++i];
+            else if (args[i].equals("--p99") && i + 1 < args.length)
+                budget = Double.parseDouble(args[++i]);
+            else if (args[i].equals("--batch") && i + 2 < args.length) {
+                batchDir = args[++i];
+                seedFile = args[++i];
+            }
+            else if (args[i].equals("--out") && i + 1 < args.length)
+                outDir = args[++i];
+            else if (args[i].equals("--threads") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--memory") && i + 1 < args.length)
+                memory = Long.parseLong(args[++i]) << 20;
+            else if (args[i].equals("--serve") && i + 1 < args.length)
+                port = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--worklist") && i + 1 < args.length)
+                worklist = args[++i];
+            else if (args[i].equals("--prefetch") && i + 1 < args.length)
+                prefetch = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--cache") && i + 1 < args.length)
+                cache = new FeatureCache(new File(args[++i]));
+            else
+                path = args[i];
+        }
+        if (batchDir != null) {
+            batch(batchDir, seedFile, outDir != null ? outDir : ".", threads, memory, cache);
+            return;
+        }
+        if (port >= 0) {
+            try {
+                long capacity = memory > 0 ? memory : MemoryBudget.ofHeap().capacity();
+                SessionManager sessions = new SessionManager(capacity, threads);
+                sessions.setFeatureCache(cache);
+                new PathServer(port, threads, sessions,
+                        outDir != null ? new File(outDir) : null).start();
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: could not serve on port " + port + ": " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        if (worklist != null) {
+            worklist(worklist, prefetch, memory, canvas, cache);
+            return;
+        }
+        if (path == null) {
             System.out.println("No image data\n" + USAGE);
             return;
         }
 
-        LivewireApp app = new LivewireApp(args[0]);
+        LivewireApp app = new LivewireApp(path);
+        app.setFeatureCache(cache);
+        if (memory > 0) app.setMemoryLimit(memory);
+        if (replay != null) {
+            MouseTrace trace;
+            try {
+                trace = MouseTrace.read(new File(replay));
+            }
+            catch (IOException e) {
+                System.out.println("ERROR: could not read mouse trace " + replay +
+                        ": " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            Histogram latency = app.replay(trace);
+            //a latency budget makes the replay usable as an automated test
+            if (budget >= 0 && latency.getP99() > budget * 1e6) {
+                System.out.println("FAILED: p99 latency exceeds " + budget + " ms");
+                System.exit(2);
+            }
+            return;
+        }
+
+        app.setUseCanvas(canvas);
+        if (record != null) app.setRecordFile(new File(record));
+        if (snapshot != null) app.setSnapshotFile(new File(snapshot));
         printInstructions();
         app.run();
     }
 
+    /** Segments the images of a directory headlessly, as listed in a seed file */
+    private static void batch(String dir, String seedFile, String outDir, int threads,
+            long memory, FeatureCache cache)
+    {
+        MemoryBudget budget = memory > 0 ? new MemoryBudget(memory) : MemoryBudget.ofHeap();
+        BatchSegmenter batch = new BatchSegmenter(new File(outDir), threads, budget);
+        batch.setFeatureCache(cache);
+        try {
+            if (batch.run(new File(dir), BatchSegmenter.readSeeds(new File(seedFile))) > 0)
+                System.exit(1);
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (InterruptedException e) {
+            System.out.println("ERROR: interrupted");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Segments the images of a worklist one after another, moving on to the
+     * next image on a key press while the following ones load in the
+     * background
+     */
+    private static void worklist(String list, int prefetch, long memory, boolean canvas,
+            FeatureCache cache)
+    {
+        Worklist worklist;
+        try {
+            MemoryBudget budget = memory > 0 ? new MemoryBudget(memory) : MemoryBudget.ofHeap();
+            worklist = new Worklist(Worklist.list(new File(list)), prefetch, budget);
+        }
+        catch (IOException e) {
+            System.out.println("ERROR: could not read worklist " + list + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        worklist.setFeatureCache(cache);
+        printInstructions();
+        System.out.println("Press any key to move on to the next image.");
+        try {
+            for (int i = 1; worklist.hasNext(); i++) {
+                long start = System.nanoTime();
+                Worklist.Item item;
+                try {
+                    item = worklist.next();
+                }
+                catch (IOException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                    continue;
+                }
+                System.out.println("Image " + i + "/" + worklist.size() + ": \"" +
+                        item.file + "\" ready after " +
+                        (System.nanoTime() - start) / 1000000 + " ms");
+                LivewireApp app = new LivewireApp(item);
+                app.setUseCanvas(canvas);
+                app.run();
+                worklist.done(item);
+            }
+        }
+        catch (InterruptedException e) {
+            System.out.println("ERROR: interrupted");
+        }
+        finally {
+            worklist.shutdown();
+        }
+    }
+
     private static void printInstructions(){
         System.out.println("\nINSTRUCTIONS");
         System.out.println("==============");
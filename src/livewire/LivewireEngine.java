@@ -0,0 +1,554 @@
+package livewire;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+
+import java.util.Arrays;
+
+
+/**
+ * One live-wire segmentation session, free of any GUI: the image's cost data,
+ * its expansion from the current seed, and the boundary cooled so far. The
+ * application, the batch segmenter and the path server all drive the
+ * live-wire through this class.
+ *
+ * <p>A session starts with seed, which snaps to the nearest edge and expands
+ * from there. path then gives the live-wire to any point, cool fixes it up to
+ * the edge near a point and continues from there, and close joins the
+ * boundary back to its first seed. Once closed, extract draws the boundary
+ * and fills the mask of the segment inside it.</p>
+ *
+ * <p>Pixels are identified by their linear index, row * cols() + col, as
+ * returned by seed and path and followed through parent; see index, row and
+ * col.</p>
+ *
+ * <p>An engine is not thread-safe: use each from one thread at a time.
+ * Engines share no state, so independent sessions may run concurrently, and
+ * they may share one cost image since they only read it.</p>
+ *
+ * <p>trim drops the expansion and the cost image to free their memory; they
+ * are fetched again from the engine's CostSource and re-expanded from the
+ * current seed when next needed, so the session carries on unchanged.</p>
+ *
+ * <p>Before an expansion is built its memory is estimated from the image's
+ * size. If it would exceed the engine's memory limit, the engine expands a
+ * downsampled grid instead: each cell of downsampling() x downsampling()
+ * pixels takes the lowest cost among them, so edges survive. The live-wire
+ * then steps from cell to cell through each cell's lowest cost pixel, and
+ * cooling refines every step at full resolution within a small window around
+ * it, so the boundary still follows the edges pixel by pixel.</p>
+ *
+ * @author James Gomez
+ */
+public class LivewireEngine
+{
+    /** how far a seed may snap to an edge */
+    public static final int SNAP_DISTANCE = 7;
+    /** the estimated heap memory of an expansion, per pixel */
+    public static final long EXPANSION_BYTES_PER_PIXEL = CostMap.BYTES_PER_PIXEL;
+    /** the coarsest downsampling, used even if it does not fit the limit */
+    private static final int MAX_DOWNSAMPLING = 64;
+    private static final Counter fullMode = Metrics.counter(Metrics.ENGINE_FULL_MODE);
+    private static final Counter downsampledMode =
+            Metrics.counter(Metrics.ENGINE_DOWNSAMPLED_MODE);
+    private static final Histogram expansionSize = Metrics.histogram(Metrics.ENGINE_EXPANSION_BYTES);
+
+    /** Supplies an engine's cost image, again after each trim */
+    public interface CostSource
+    {
+        ImageBuffer costs();
+    }
+
+    private CostSource source;
+    private int rows;
+    private int cols;
+    /** the cost image and its expansion, or null while trimmed */
+    private ImageBuffer costs;
+    private CostMap costMap;
+    /** the side of the cells the expansion works on, 1 at full resolution */
+    private int downsampling = 1;
+    /** the expansion of a refinement window, and the refined path */
+    private CostMap window;
+    private int[] refined = new int[64];
+    private long memoryLimit = MemoryBudget.ofHeap().capacity();
+    private ExpansionListener listener;
+    private Boundary boundary;
+    /** the linear indices of the first and the current seed, or CostMap.NONE */
+    private int firstSeed = CostMap.NONE;
+    private int seed = CostMap.NONE;
+    private boolean closed;
+    /** a copy of the boundary for the contour search, which modifies it */
+    private ImageBuffer contourImage;
+
+    /** Creates a session on a grayscale image, extracting its features */
+    public LivewireEngine(CvMat gray) {
+        this(ImageBuffer.wrap(Features.costImage(gray)));
+    }
+
+    /** Creates a session on an 8-bit cost image, as made by Features.costImage */
+    public LivewireEngine(ImageBuffer costs) {
+        this(costs.rows(), costs.cols(), fixed(costs));
+        this.costs = costs;
+    }
+
+    /**
+     * Creates a session on an image of the given size whose cost image is
+     * fetched from source when first needed
+     */
+    public LivewireEngine(int rows, int cols, CostSource source) {
+        this.rows = rows;
+        this.cols = cols;
+        this.source = source;
+        boundary = new Boundary(rows, cols);
+    }
+
+    private static CostSource fixed(final ImageBuffer costs) {
+        return new CostSource()
+        {
+            @Override
+            public ImageBuffer costs() {
+                return costs;
+            }
+        };
+    }
+
+    /**
+     * Starts over on another cost image, reusing the engine's buffers where
+     * the image's size allows
+     */
+    public void reset(ImageBuffer costs) {
+        if (costs.rows() != rows || costs.cols() != cols) {
+            rows = costs.rows();
+            cols = costs.cols();
+            boundary = new Boundary(rows, cols);
+            contourImage = null;
+        }
+        source = fixed(costs);
+        this.costs = costs;
+        if (costMap != null && downsampling == 1 && downsampling(rows, cols, memoryLimit) == 1) {
+            costMap.reset(costs);
+        }
+        else {
+            costMap = null;
+        }
+        clear();
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    /** @return the linear index of the pixel at (x, y) */
+    public int index(int x, int y) {
+        return y * cols + x;
+    }
+
+    /** @return the row (y) of the pixel with the given linear index */
+    public int row(int index) {
+        return index / cols;
+    }
+
+    /** @return the column (x) of the pixel with the given linear index */
+    public int col(int index) {
+        return index % cols;
+    }
+
+    /** @return the cost image; do not modify it */
+    public ImageBuffer costs() {
+        if (costs == null) {
+            costs = source.costs();
+            if (costs.rows() != rows || costs.cols() != cols)
+                throw new IllegalStateException("the cost image is " + costs.cols() + "x" +
+                        costs.rows() + ", not " + cols + "x" + rows);
+        }
+        return costs;
+    }
+
+    /**
+     * Drops the expansion and the cost image. They are rebuilt when next
+     * needed, which costs one feature extraction, if the source has to
+     * compute it again, and one expansion.
+     */
+    public void trim() {
+        costMap = null;
+        window = null;
+        costs = null;
+    }
+
+    /**
+     * Sets the most heap memory the expansion may take; beyond it the engine
+     * expands a downsampled grid. Takes effect when the expansion is next
+     * built. The default is three quarters of the heap.
+     */
+    public void setMemoryLimit(long bytes) {
+        memoryLimit = bytes;
+    }
+
+    public long memoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * @return the side, in pixels, of the cells the expansion works on: 1 at
+     * full resolution, else a power of two
+     */
+    public int downsampling() {
+        return downsampling;
+    }
+
+    /**
+     * @return the estimated heap memory of the expansion of an image of the
+     * given size, downsampled as needed to fit the given limit
+     */
+    public static long expansionBytes(int rows, int cols, long memoryLimit) {
+        return downsampledBytes(rows, cols, downsampling(rows, cols, memoryLimit));
+    }
+
+    /** @return the finest downsampling whose expansion fits the memory limit */
+    private static int downsampling(int rows, int cols, long memoryLimit) {
+        int factor = 1;
+        while (factor < MAX_DOWNSAMPLING && (downsampledBytes(rows, cols, factor) > memoryLimit ||
+                (long) cells(rows, factor) * cells(cols, factor) > Integer.MAX_VALUE - 8))
+            factor *= 2;
+        return factor;
+    }
+
+    /** @return the estimated heap memory of an expansion on cells of the given side */
+    private static long downsampledBytes(int rows, int cols, int factor) {
+        int cellRows = cells(rows, factor);
+        int cellCols = cells(cols, factor);
+        long bytes = CostMap.bytes(cellRows, cellCols);
+        if (factor > 1) {
+            //the cell costs, and a refinement window
+            bytes += (long) cellRows * cellCols + CostMap.bytes(3 * factor, 3 * factor);
+        }
+        return bytes;
+    }
+
+    private static int cells(int pixels, int factor) {
+        return (pixels + factor - 1) / factor;
+    }
+
+    /**
+     * Fetches the cost image and builds the expansion's buffers now rather
+     * than on the first seed, e.g. on a background thread
+     */
+    public void prepare() {
+        map();
+    }
+
+    /** @return whether the cost image is held, i.e. the engine is not trimmed */
+    public boolean isResident() {
+        return costs != null;
+    }
+
+    /** @return the estimated heap memory held by the expansion */
+    public long expansionBytes() {
+        return costMap == null ? 0 : downsampledBytes(rows, cols, downsampling);
+    }
+
+    /** @return the boundary cooled so far; do not modify it */
+    public Boundary boundary() {
+        return boundary;
+    }
+
+    /** @return the index of the current seed, or CostMap.NONE if there is none */
+    public int seed() {
+        return seed;
+    }
+
+    public boolean isSeeded() {
+        return seed != CostMap.NONE;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** Sets the listener notified of each expansion's progress */
+    public void setExpansionListener(ExpansionListener listener) {
+        this.listener = listener;
+        if (costMap != null) costMap.setExpansionListener(listener);
+    }
+
+    /**
+     * Starts a new boundary at the edge nearest to (x, y) and expands the
+     * live-wire from there
+     *
+     * @return the index of the seed
+     */
+    public int seed(int x, int y) {
+        check(x, y);
+        clear();
+        CostMap map = map();
+        firstSeed = CostMap.snapToEdge(costs(), y, x, SNAP_DISTANCE);
+        seed = firstSeed;
+        addSeed(map, seed);
+        return seed;
+    }
+
+    /**
+     * Queries the live-wire to (x, y). Only the cached expansion is read, so
+     * this is cheap however often it is called.
+     *
+     * @return the index of (x, y), whose parents lead to the seed
+     */
+    public int path(int x, int y) {
+        check(x, y);
+        requireSeed();
+        return index(x, y);
+    }
+
+    /**
+     * @return the index of the next pixel on the live-wire from a pixel to
+     * the seed, or CostMap.NONE at the seed
+     */
+    public int parent(int index) {
+        requireSeed();
+        CostMap map = map();
+        if (downsampling == 1) return map.parent(index);
+
+        //step to the lowest cost pixel of the next cell towards the seed
+        if (index == seed) return CostMap.NONE;
+        int cell = cell(map, index);
+        if (cell == map.seed()) return seed;
+        int next = map.parent(cell);
+        if (next == CostMap.NONE) return CostMap.NONE;
+        return next == map.seed() ? seed : representative(map, next);
+    }
+
+    /**
+     * Fixes the live-wire up to the edge near (x, y) to the boundary. If it
+     * crosses the start of the boundary, the boundary is closed; otherwise the
+     * edge becomes the new seed and the live-wire is expanded from it.
+     *
+     * @return true if the boundary was closed
+     */
+    public boolean cool(int x, int y) {
+        check(x, y);
+        requireSeed();
+        CostMap map = map();
+        int current;
+        if (downsampling == 1) {
+            current = map.getClosestEdge(y, x);
+            closed = boundary.cool(map, current, seed);
+        }
+        else {
+            int cell = map.getClosestEdge(y / downsampling, x / downsampling);
+            current = cell == map.seed() ? seed : representative(map, cell);
+            int length = refine(current);
+            closed = boundary.cool(refined, length);
+        }
+        if (closed) {
+            seed = CostMap.NONE;
+        }
+        else {
+            seed = current;
+            addSeed(map, seed);
+        }
+        return closed;
+    }
+
+    /** Closes the boundary with the live-wire back to the first seed */
+    public void close() {
+        if (closed) return;
+        requireSeed();
+        CostMap map = map();
+        if (downsampling == 1) {
+            boundary.cool(map, firstSeed, seed);
+        }
+        else {
+            int length = refine(firstSeed);
+            boundary.cool(refined, length);
+        }
+        closed = true;
+        seed = CostMap.NONE;
+    }
+
+    /** Drops the boundary and the seed */
+    public void clear() {
+        boundary.clear();
+        firstSeed = CostMap.NONE;
+        seed = CostMap.NONE;
+        closed = false;
+    }
+
+    /**
+     * Draws the closed boundary into boundaryImage and fills the segment it
+     * encloses, boundary included, into mask. Both must be 8-bit images of
+     * the engine's size; they are cleared first.
+     */
+    public void extract(ImageBuffer boundaryImage, ImageBuffer mask) {
+        if (!closed)
+            throw new IllegalStateException("the boundary is not closed");
+        if (contourImage == null)
+            contourImage = ImageBuffer.allocate(rows(), cols(), opencv_core.CV_8U);
+        boundaryImage.clear();
+        mask.clear();
+        contourImage.clear();
+        boundary.draw(boundaryImage);
+        boundary.draw(contourImage);
+        boundary.fillMask(contourImage, mask);
+    }
+
+    /** @return the index of the boundary's first seed, or CostMap.NONE */
+    int firstSeed() {
+        return firstSeed;
+    }
+
+    /**
+     * @return the expansion from the current seed, rebuilding it if the engine
+     * was trimmed, or null if there is no seed or the expansion is downsampled;
+     * do not modify it
+     */
+    public CostMap expansion() {
+        if (seed == CostMap.NONE) return null;
+        CostMap map = map();
+        return downsampling == 1 ? map : null;
+    }
+
+    /**
+     * Resumes a session saved by SessionSnapshot on this engine's cost image.
+     * The boundary must have been restored already.
+     *
+     * @param map the expansion from seed, or null if there is no seed
+     */
+    void restore(CostMap map, int firstSeed, int seed, boolean closed) {
+        costMap = map;
+        if (map != null && listener != null) map.setExpansionListener(listener);
+        this.firstSeed = firstSeed;
+        this.seed = seed;
+        this.closed = closed;
+    }
+
+    /**
+     * @return the expansion from the current seed, rebuilding it if the engine
+     * was trimmed
+     */
+    private CostMap map() {
+        if (costMap == null) {
+            downsampling = downsampling(rows, cols, memoryLimit);
+            long bytes = downsampledBytes(rows, cols, downsampling);
+            if (downsampling == 1) {
+                costMap = new CostMap(costs());
+                fullMode.increment();
+            }
+            else {
+                System.out.println("WARNING: expanding " + cols + "x" + rows + " pixels would take " +
+                        CostMap.bytes(rows, cols) / 1024 + " KB, over the " +
+                        memoryLimit / 1024 + " KB limit; downsampling " + downsampling +
+                        " times to " + bytes / 1024 + " KB");
+                costMap = new CostMap(downsample(costs(), downsampling));
+                downsampledMode.increment();
+            }
+            expansionSize.record(bytes);
+            if (listener != null) costMap.setExpansionListener(listener);
+            if (seed != CostMap.NONE) addSeed(costMap, seed);
+        }
+        return costMap;
+    }
+
+    /** Expands the map from the pixel with the given index, or from its cell */
+    private void addSeed(CostMap map, int index) {
+        map.addSeed(row(index) / downsampling, col(index) / downsampling);
+    }
+
+    /** @return the index in the map of the cell holding a pixel */
+    private int cell(CostMap map, int index) {
+        return map.index(row(index) / downsampling, col(index) / downsampling);
+    }
+
+    /** @return the index of the lowest cost pixel in a cell, the first one on a tie */
+    private int representative(CostMap map, int cell) {
+        ImageBuffer costs = costs();
+        int top = map.row(cell) * downsampling;
+        int left = map.col(cell) * downsampling;
+        int bottom = Math.min(top + downsampling, rows);
+        int right = Math.min(left + downsampling, cols);
+        int best = index(left, top);
+        int bestCost = costs.get(top, left);
+        for (int i = top; i < bottom; i++) {
+            for (int j = left; j < right; j++) {
+                int cost = costs.get(i, j);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = index(j, i);
+                }
+            }
+        }
+        return best;
+    }
+
+    /** @return an 8-bit image holding the lowest cost of each factor x factor cell */
+    private static ImageBuffer downsample(ImageBuffer costs, int factor) {
+        int rows = costs.rows();
+        int cols = costs.cols();
+        ImageBuffer cells = ImageBuffer.allocate(cells(rows, factor), cells(cols, factor),
+                opencv_core.CV_8U);
+        for (int i = 0; i < cells.rows(); i++) {
+            for (int j = 0; j < cells.cols(); j++)
+                cells.put(i, j, 255);
+        }
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                int cost = costs.get(i, j);
+                if (cost < cells.get(i / factor, j / factor))
+                    cells.put(i / factor, j / factor, cost);
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Traces the live-wire from target to the seed at full resolution into
+     * refined, expanding a small window around each of its steps from cell
+     * to cell
+     *
+     * @return the length of the path, which runs from target towards the seed
+     * and excludes the seed
+     */
+    private int refine(int target) {
+        int margin = Math.max(downsampling / 2, 1);
+        int length = 0;
+        int from = target;
+        while (from != seed) {
+            int to = parent(from);
+            if (to == CostMap.NONE) break;
+            int top = Math.max(Math.min(row(from), row(to)) - margin, 0);
+            int left = Math.max(Math.min(col(from), col(to)) - margin, 0);
+            int bottom = Math.min(Math.max(row(from), row(to)) + margin, rows - 1);
+            int right = Math.min(Math.max(col(from), col(to)) + margin, cols - 1);
+            ImageBuffer region = costs().region(top, left, bottom - top + 1, right - left + 1);
+            if (window == null)
+                window = new CostMap(region);
+            else
+                window.reset(region);
+            window.addSeed(row(to) - top, col(to) - left);
+
+            int end = window.seed();
+            int n = window.index(row(from) - top, col(from) - left);
+            for (; n != end && n != CostMap.NONE; n = window.parent(n)) {
+                if (length == refined.length)
+                    refined = Arrays.copyOf(refined, 2 * length);
+                refined[length++] = index(window.col(n) + left, window.row(n) + top);
+            }
+            from = to;
+        }
+        return length;
+    }
+
+    private void check(int x, int y) {
+        if (x < 0 || x >= cols() || y < 0 || y >= rows())
+            throw new IllegalArgumentException("point " + x + "," + y +
+                    " is outside the " + cols() + "x" + rows() + " image");
+    }
+
+    private void requireSeed() {
+        if (seed == CostMap.NONE)
+            throw new IllegalStateException(closed ? "the boundary is closed" : "no seed has been set");
+    }
+}
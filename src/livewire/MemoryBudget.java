@@ -0,0 +1,43 @@
+package livewire;
+
+
+/**
+ * A budget of memory shared by concurrent jobs. A job reserves its estimated
+ * size before it starts and waits while the reservations of running jobs
+ * would exceed the budget. A job larger than the whole budget still runs,
+ * but only once no other job holds a reservation.
+ *
+ * @author James Gomez
+ */
+public class MemoryBudget
+{
+    private final long capacity;
+    private long reserved;
+
+    /** Creates a budget of the given number of bytes */
+    public MemoryBudget(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /** @return a budget of the heap the JVM may grow to, less a quarter for everything else */
+    public static MemoryBudget ofHeap() {
+        return new MemoryBudget(Runtime.getRuntime().maxMemory() / 4 * 3);
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    /** Waits until the given number of bytes can be reserved, then reserves them */
+    public synchronized void reserve(long bytes) throws InterruptedException {
+        while (reserved > 0 && reserved + bytes > capacity)
+            wait();
+        reserved += bytes;
+    }
+
+    /** Returns bytes reserved by reserve */
+    public synchronized void release(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+}
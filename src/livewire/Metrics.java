@@ -0,0 +1,100 @@
+package livewire;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * The application-wide registry of performance metrics. Every histogram and
+ * counter is created on first use and registered with the platform MBean
+ * server under the "livewire" domain, so it can be watched with jconsole or
+ * any other JMX client, with or without a display.
+ *
+ * <p>Durations are recorded in nanoseconds; metric names end with their
+ * unit.</p>
+ *
+ * @author James Gomez
+ */
+public final class Metrics
+{
+    /** Time and work of each CostMap expansion */
+    public static final String EXPAND_NANOS = "costmap.expand.nanos";
+    public static final String EXPAND_SETTLED = "costmap.expand.settledNodes";
+    public static final String EXPAND_PEAK_FRONTIER = "costmap.expand.peakFrontier";
+    public static final String SEED_ALLOCATED_BYTES = "costmap.seed.allocatedBytes";
+    /** Time of each feature extraction stage */
+    public static final String GRADIENT_NANOS = "features.gradient.nanos";
+    public static final String EDGES_NANOS = "features.edges.nanos";
+    public static final String SUM_NANOS = "features.sum.nanos";
+    /** Time from a mouse event's arrival to the frame showing its result */
+    public static final String EVENT_LATENCY_NANOS = "events.latency.nanos";
+    public static final String EVENTS_DROPPED = "events.dropped";
+    /** Expansions built at full resolution and downsampled, and their estimated heap size */
+    public static final String ENGINE_FULL_MODE = "engine.mode.full";
+    public static final String ENGINE_DOWNSAMPLED_MODE = "engine.mode.downsampled";
+    public static final String ENGINE_EXPANSION_BYTES = "engine.expansion.bytes";
+
+    private static final ConcurrentMap<String, Histogram> histograms =
+            new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentMap<String, Counter> counters =
+            new ConcurrentHashMap<String, Counter>();
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private Metrics() {
+    }
+
+    /** @return the histogram with the given name, creating it if needed */
+    public static Histogram histogram(String name) {
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            Histogram created = new Histogram();
+            h = histograms.putIfAbsent(name, created);
+            if (h == null) {
+                h = created;
+                register("Histogram", name, h);
+            }
+        }
+        return h;
+    }
+
+    /** @return the counter with the given name, creating it if needed */
+    public static Counter counter(String name) {
+        Counter c = counters.get(name);
+        if (c == null) {
+            Counter created = new Counter();
+            c = counters.putIfAbsent(name, created);
+            if (c == null) {
+                c = created;
+                register("Counter", name, c);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * @return the number of bytes allocated so far by the calling thread, or -1
+     * if the JVM cannot report it
+     */
+    public static long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void register(String type, String name, Object mbean) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+                    new ObjectName("livewire:type=" + type + ",name=" + name));
+        }
+        catch (JMException e) {
+            System.out.println("WARNING: could not register metric " + name +
+                    ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package livewire;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * A recorded stream of mouse events (type, x, y and time) as posted to an
+ * EventQueue during a session, so the session can be replayed without a
+ * display.
+ *
+ * <p>The trace file starts with a header (magic, version, image rows and
+ * columns) followed by one record per event: the event type as a byte, then
+ * the microseconds since the previous event and the x and y position as
+ * variable-length integers. A typical mouse move takes four to six bytes.</p>
+ *
+ * @author James Gomez
+ */
+public class MouseTrace
+{
+    private static final int MAGIC = 0x4C574D54; //"LWMT"
+    private static final int VERSION = 1;
+
+    private final int rows;
+    private final int cols;
+    private int size;
+    private int[] events = new int[1024];
+    private int[] xs = new int[1024];
+    private int[] ys = new int[1024];
+    private long[] nanos = new long[1024];
+
+    private MouseTrace(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /** Reads a trace written by a Recorder */
+    public static MouseTrace read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException(file + " is not a mouse trace");
+            MouseTrace trace = new MouseTrace(in.readInt(), in.readInt());
+            long time = 0;
+            int event;
+            while ((event = in.read()) >= 0) {
+                time += readVarint(in) * 1000;
+                trace.add(event, (int) readVarint(in), (int) readVarint(in), time);
+            }
+            return trace;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /** @return the rows of the image the trace was recorded on */
+    public int rows() {
+        return rows;
+    }
+
+    /** @return the columns of the image the trace was recorded on */
+    public int cols() {
+        return cols;
+    }
+
+    /** @return the number of recorded events */
+    public int size() {
+        return size;
+    }
+
+    /** @return the type of the i-th event */
+    public int event(int i) {
+        return events[i];
+    }
+
+    public int x(int i) {
+        return xs[i];
+    }
+
+    public int y(int i) {
+        return ys[i];
+    }
+
+    /** @return the time of the i-th event in nanoseconds since the first */
+    public long time(int i) {
+        return nanos[i];
+    }
+
+    private void add(int event, int x, int y, long time) {
+        if (size == events.length) {
+            int capacity = 2 * size;
+            int[] e = new int[capacity];
+            int[] xx = new int[capacity];
+            int[] yy = new int[capacity];
+            long[] t = new long[capacity];
+            System.arraycopy(events, 0, e, 0, size);
+            System.arraycopy(xs, 0, xx, 0, size);
+            System.arraycopy(ys, 0, yy, 0, size);
+            System.arraycopy(nanos, 0, t, 0, size);
+            events = e;
+            xs = xx;
+            ys = yy;
+            nanos = t;
+        }
+        events[size] = event;
+        xs[size] = x;
+        ys[size] = y;
+        nanos[size++] = time;
+    }
+
+    /**
+     * Writes events to a trace file as they happen. A failed write is reported
+     * once and ends the recording; the session itself carries on.
+     */
+    public static class Recorder
+    {
+        private final File file;
+        private final int rows;
+        private final int cols;
+        private DataOutputStream out;
+        private long last = -1;
+
+        public Recorder(File file, int rows, int cols) throws IOException {
+            this.file = file;
+            this.rows = rows;
+            this.cols = cols;
+            out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rows);
+            out.writeInt(cols);
+        }
+
+        /**
+         * Records an event posted at the given System.nanoTime(). Positions
+         * off the image, which a window reports while dragging past its
+         * edge, are recorded at the nearest edge pixel.
+         */
+        public synchronized void record(int event, int x, int y, long nanoTime) {
+            if (out == null) return;
+            long micros = last < 0 ? 0 : Math.max(nanoTime - last, 0) / 1000;
+            last = nanoTime;
+            try {
+                out.write(event);
+                writeVarint(out, micros);
+                writeVarint(out, Math.min(Math.max(x, 0), cols - 1));
+                writeVarint(out, Math.min(Math.max(y, 0), rows - 1));
+            }
+            catch (IOException e) {
+                System.out.println("WARNING: stopped recording mouse trace " +
+                        file + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        /** Flushes and closes the trace file */
+        public synchronized void close() {
+            if (out == null) return;
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                System.out.println("WARNING: could not close mouse trace " +
+                        file + ": " + e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /** Writes a non-negative value seven bits at a time, low bits first */
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while (value >= 0x80) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException("Truncated mouse trace");
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package livewire;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_highgui;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A daemon serving live-wire sessions over HTTP on localhost, so that other
+ * tools can use the live-wire without its windows. Every request names its
+ * operation in the path and passes its arguments as query parameters;
+ * responses are JSON. Requests that change a session or write files must be
+ * POSTs; only /path and /extract without out may also be GETs.
+ *
+ * <pre>
+ * /open?image=path              open a session on an image  -> {"session":id,...}
+ * /resume?snapshot=file         open a session saved by /save -> {"session":id,...}
+ * /seed?session=id&amp;x=&amp;y=         snap to an edge and expand from there
+ * /path?session=id&amp;x=&amp;y=         the live-wire from (x, y) to the seed
+ * /cool?session=id&amp;x=&amp;y=         fix the live-wire to the edge near (x, y)
+ * /close?session=id             close the boundary back to its first seed
+ * /extract?session=id[&amp;out=p]   boundary points and mask area; with out,
+ *                               also write p_boundary.png and p_mask.png
+ * /save?session=id&amp;snapshot=file  save the session to resume it later
+ * /release?session=id           end a session
+ * </pre>
+ *
+ * Listening on localhost does not keep web pages out, since a browser sends
+ * their requests there on behalf of any site. So requests carrying an Origin header, or a
+ * Host other than localhost, are refused; session ids are random; and the
+ * files named by /resume, /save and /extract are confined to a directory
+ * given at startup, without which those requests are refused.
+ *
+ * Sessions are hosted by a SessionManager: cost images are computed once per
+ * image file and shared by the sessions on it, and each session keeps its
+ * expansion, so path queries only follow parent pointers, until memory runs
+ * short. Requests are accepted by a bounded pool and their work runs on the
+ * manager's pool; requests to the same session are served one at a time.
+ *
+ * @author James Gomez
+ */
+public class PathServer
+{
+    /** how many requests may wait for a worker before callers are slowed down */
+    private static final int QUEUE_CAPACITY = 256;
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+    private final SessionManager sessions;
+    /** the canonical directory that snapshots and output files must lie in, or null */
+    private final File files;
+
+    /** Signals a request that cannot be served, with its HTTP status */
+    private static class RequestException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Creates a server on the given localhost port, accepting requests on the
+     * given number of threads and serving them from the given sessions.
+     * Snapshots and output files are read and written within files only; if
+     * it is null, requests naming files are refused.
+     */
+    public PathServer(int port, int threads, SessionManager sessions, File files)
+            throws IOException
+    {
+        this.sessions = sessions;
+        this.files = files == null ? null : files.getCanonicalFile();
+        //small responses would otherwise wait on delayed acknowledgements
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Serving live-wire sessions on http://localhost:" +
+                server.getAddress().getPort() + "/" +
+                (files != null ? ", files in " + files : ", without file access"));
+    }
+
+    /** Stops accepting requests, waiting up to delay seconds for running ones */
+    public void stop(int delay) {
+        server.stop(delay);
+        executor.shutdown();
+        sessions.shutdown();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String body;
+        try {
+            //web pages may reach localhost through the browser, directly or by DNS rebinding
+            Headers headers = exchange.getRequestHeaders();
+            if (headers.containsKey("Origin") || !isLocalHost(headers.getFirst("Host")))
+                throw new RequestException(403, "requests from web pages are refused");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            body = dispatch(exchange.getRequestURI().getPath(), query,
+                    exchange.getRequestMethod().equals("POST"));
+        }
+        catch (RequestException e) {
+            status = e.status;
+            body = error(e.getMessage());
+        }
+        catch (NoSuchElementException e) {
+            status = 404;
+            body = error(e.getMessage());
+        }
+        catch (IllegalArgumentException e) {
+            status = 400;
+            body = error(e.getMessage());
+        }
+        catch (IllegalStateException e) {
+            status = 409;
+            body = error(e.getMessage());
+        }
+        catch (RuntimeException e) {
+            status = 500;
+            body = error(String.valueOf(e));
+        }
+
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private String dispatch(String path, final Map<String, String> query, boolean post)
+            throws RequestException
+    {
+        //only reads may be GETs
+        if (!post && !path.equals("/path") && !(path.equals("/extract") && !query.containsKey("out")))
+            throw new RequestException(405, path + " must be a POST request");
+
+        if (path.equals("/open") || path.equals("/resume")) {
+            try {
+                final String id = path.equals("/open")
+                        ? sessions.open(required(query, "image"))
+                        : sessions.resume(file(required(query, "snapshot")));
+                return sessions.run(id, new SessionManager.Operation<String>()
+                {
+                    @Override
+                    public String run(LivewireEngine engine) {
+                        return "{\"session\":\"" + id + "\",\"rows\":" + engine.rows() +
+                                ",\"cols\":" + engine.cols() + "}";
+                    }
+                });
+            }
+            catch (IOException e) {
+                throw new RequestException(400, e.getMessage());
+            }
+        }
+
+        String id = required(query, "session");
+        if (path.equals("/release")) {
+            if (!sessions.release(id))
+                throw new RequestException(404, "no session " + id);
+            return "{\"session\":\"" + id + "\"}";
+        }
+        if (path.equals("/extract"))
+            return extract(id, query.get("out"));
+        if (path.equals("/save"))
+            return save(id, file(required(query, "snapshot")));
+        if (path.equals("/close")) {
+            return sessions.run(id, new SessionManager.Operation<String>()
+            {
+                @Override
+                public String run(LivewireEngine engine) {
+                    engine.close();
+                    return "{\"closed\":true,\"boundary\":" + engine.boundary().size() + "}";
+                }
+            });
+        }
+
+        final int x = integer(query, "x");
+        final int y = integer(query, "y");
+        if (path.equals("/seed")) {
+            return sessions.run(id, new SessionManager.Operation<String>()
+            {
+                @Override
+                public String run(LivewireEngine engine) {
+                    int seed = engine.seed(x, y);
+                    return "{\"x\":" + engine.col(seed) + ",\"y\":" + engine.row(seed) + "}";
+                }
+            });
+        }
+        if (path.equals("/path")) {
+            return sessions.run(id, new SessionManager.Operation<String>()
+            {
+                @Override
+                public String run(LivewireEngine engine) {
+                    return path(engine, x, y);
+                }
+            });
+        }
+        if (path.equals("/cool")) {
+            return sessions.run(id, new SessionManager.Operation<String>()
+            {
+                @Override
+                public String run(LivewireEngine engine) {
+                    boolean closed = engine.cool(x, y);
+                    return "{\"closed\":" + closed + ",\"boundary\":" +
+                            engine.boundary().size() + "}";
+                }
+            });
+        }
+        throw new RequestException(404, "unknown request " + path);
+    }
+
+    private static String path(LivewireEngine engine, int x, int y) {
+        int n = engine.path(x, y);
+        int seed = engine.seed();
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{\"points\":[");
+        while (true) {
+            json.append('[').append(engine.col(n)).append(',').append(engine.row(n)).append(']');
+            if (n == seed || engine.parent(n) == CostMap.NONE) break;
+            json.append(',');
+            n = engine.parent(n);
+        }
+        return json.append("]}").toString();
+    }
+
+    private String extract(String id, String out) throws RequestException {
+        File boundaryFile = out == null ? null : file(out + "_boundary.png");
+        File maskFile = out == null ? null : file(out + "_mask.png");
+        //the images are written after the session is free for other requests
+        final ImageBuffer[] images = new ImageBuffer[2];
+        String json = sessions.run(id, new SessionManager.Operation<String>()
+        {
+            @Override
+            public String run(LivewireEngine engine) {
+                ImageBuffer boundaryImage = ImageBuffer.allocate(engine.rows(), engine.cols(),
+                        opencv_core.CV_8U);
+                ImageBuffer maskImage = ImageBuffer.allocate(engine.rows(), engine.cols(),
+                        opencv_core.CV_8U);
+                engine.extract(boundaryImage, maskImage);
+                images[0] = boundaryImage;
+                images[1] = maskImage;
+
+                long area = 0;
+                for (int i = 0; i < maskImage.rows(); i++)
+                    for (int j = 0; j < maskImage.cols(); j++)
+                        if (maskImage.get(i, j) != 0) area++;
+
+                Boundary boundary = engine.boundary();
+                StringBuilder json = new StringBuilder(16 * boundary.size() + 32);
+                json.append("{\"area\":").append(area).append(",\"boundary\":[");
+                for (int i = 0; i < boundary.size(); i++) {
+                    if (i > 0) json.append(',');
+                    json.append('[').append(boundary.col(i)).append(',')
+                            .append(boundary.row(i)).append(']');
+                }
+                return json.append("]}").toString();
+            }
+        });
+        if (out != null) {
+            save(boundaryFile, images[0]);
+            save(maskFile, images[1]);
+        }
+        return json;
+    }
+
+    private String save(final String id, final File snapshot) throws RequestException {
+        final IOException[] failure = new IOException[1];
+        String json = sessions.run(id, new SessionManager.Operation<String>()
+        {
+            @Override
+            public String run(LivewireEngine engine) {
+                try {
+                    SessionSnapshot.save(engine, snapshot);
+                }
+                catch (IOException e) {
+                    failure[0] = e;
+                }
+                return "{\"session\":\"" + id + "\",\"boundary\":" +
+                        engine.boundary().size() + "}";
+            }
+        });
+        if (failure[0] != null)
+            throw new RequestException(500, "could not save " + snapshot + ": " + failure[0].getMessage());
+        return json;
+    }
+
+    private static void save(File file, ImageBuffer image) throws RequestException {
+        if (opencv_highgui.cvSaveImage(file.getPath(), image.asCvMat()) == 0)
+            throw new RequestException(500, "could not write " + file);
+    }
+
+    /**
+     * @return the file of the given name within the server's directory
+     * @throws RequestException if there is no directory or the name leads
+     *                          out of it
+     */
+    private File file(String name) throws RequestException {
+        if (files == null)
+            throw new RequestException(403, "file access is disabled; start the server with --out <dir>");
+        File file;
+        try {
+            file = new File(files, name).getCanonicalFile();
+        }
+        catch (IOException e) {
+            throw new RequestException(400, "bad file name " + name);
+        }
+        if (!file.getPath().startsWith(files.getPath() + File.separator))
+            throw new RequestException(403, name + " is outside " + files);
+        return file;
+    }
+
+    /** @return whether a Host header names the loopback interface; a missing one does */
+    private static boolean isLocalHost(String host) {
+        if (host == null) return true;
+        String name = host.replaceFirst(":[0-9]+$", "");
+        return name.equalsIgnoreCase("localhost") || name.equals("127.0.0.1") || name.equals("[::1]");
+    }
+
+    private static String required(Map<String, String> query, String name)
+            throws RequestException
+    {
+        String value = query.get(name);
+        if (value == null)
+            throw new RequestException(400, "missing parameter " + name);
+        return value;
+    }
+
+    private static int integer(Map<String, String> query, String name)
+            throws RequestException
+    {
+        try {
+            return Integer.parseInt(required(query, name));
+        }
+        catch (NumberFormatException e) {
+            throw new RequestException(400, name + " must be an integer");
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws RequestException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) return params;
+        try {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq < 0)
+                    params.put(URLDecoder.decode(pair, "UTF-8"), "");
+                else
+                    params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        catch (IllegalArgumentException e) {
+            throw new RequestException(400, "malformed query");
+        }
+        return params;
+    }
+
+    private static String error(String message) {
+        String text = String.valueOf(message);
+        StringBuilder json = new StringBuilder(text.length() + 16);
+        json.append("{\"error\":\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        return json.append("\"}").toString();
+    }
+}
@@ -0,0 +1,406 @@
+package livewire;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_highgui;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Hosts many live-wire sessions in one JVM. Feature extraction and every
+ * session operation run on one shared work-stealing pool. Cost images are
+ * computed once per image file and shared by its sessions.
+ *
+ * <p>The memory held by each session's expansion and by each cost image is
+ * tracked against a global capacity. When an operation leaves more in use,
+ * the least recently used sessions are trimmed (see LivewireEngine.trim),
+ * then the least recently used cost images that no session holds are
+ * dropped. Both are recomputed when a session is used again, so eviction
+ * only ever costs time. Sessions busy in an operation are never evicted.</p>
+ *
+ * @author James Gomez
+ */
+public class SessionManager
+{
+    /** Runs on a session's engine, which no other operation uses meanwhile */
+    public interface Operation<T>
+    {
+        T run(LivewireEngine engine);
+    }
+
+    /** An image's cost image, computed on first use */
+    private class CostImage implements LivewireEngine.CostSource
+    {
+        final String path;
+        FutureTask<ImageBuffer> task;
+        long bytes;
+
+        CostImage(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public ImageBuffer costs() {
+            FutureTask<ImageBuffer> task;
+            boolean mine = false;
+            synchronized (SessionManager.this) {
+                features.get(path); //marks it recently used
+                if (this.task == null) {
+                    this.task = new FutureTask<ImageBuffer>(new Callable<ImageBuffer>()
+                    {
+                        @Override
+                        public ImageBuffer call() throws IOException {
+                            FeatureCache cache = SessionManager.this.cache;
+                            if (cache != null)
+                                return cache.costs(new File(path), null);
+                            CvMat gray = opencv_highgui.cvLoadImageM(path, opencv_core.CV_8U);
+                            if (gray == null)
+                                throw new IOException("could not load image " + path);
+                            return ImageBuffer.wrap(Features.costImage(gray));
+                        }
+                    });
+                    mine = true;
+                }
+                task = this.task;
+            }
+
+            if (mine) {
+                task.run();
+                synchronized (SessionManager.this) {
+                    if (task == this.task && !failed(task)) {
+                        bytes = (long) done(task).rows() * done(task).step();
+                        used += bytes;
+                    }
+                    else if (task == this.task) {
+                        this.task = null;
+                    }
+                }
+            }
+            return done(task);
+        }
+    }
+
+    private static class Session
+    {
+        final LivewireEngine engine;
+        final CostImage image;
+        final ReentrantLock lock = new ReentrantLock();
+        /** the expansion memory charged for this session */
+        long bytes;
+
+        Session(LivewireEngine engine, CostImage image) {
+            this.engine = engine;
+            this.image = image;
+        }
+    }
+
+    private final long capacity;
+    private final ForkJoinPool pool;
+    /** by canonical image path, least recently used first */
+    private final LinkedHashMap<String, CostImage> features =
+            new LinkedHashMap<String, CostImage>(16, 0.75f, true);
+    /** by id, least recently used first */
+    private final LinkedHashMap<String, Session> sessions =
+            new LinkedHashMap<String, Session>(16, 0.75f, true);
+    /** session ids are random, so that no client can guess another's */
+    private final SecureRandom ids = new SecureRandom();
+    private long used;
+    private long evictions;
+    private volatile FeatureCache cache;
+
+    /**
+     * Creates a manager that keeps the memory of expansions and cost images
+     * under capacity bytes, running operations on the given number of threads
+     */
+    public SessionManager(long capacity, int parallelism) {
+        this.capacity = capacity;
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Reads and stores cost images in the given cache, so that evicted cost
+     * images are mapped back rather than recomputed; null disables it
+     */
+    public void setFeatureCache(FeatureCache cache) {
+        this.cache = cache;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    /** @return the memory held by expansions and cost images, in bytes */
+    public synchronized long used() {
+        return used;
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    /** @return how many sessions and cost images have been evicted */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * Opens a session on an image file, extracting its features unless
+     * another session on the image holds them already
+     *
+     * @return the new session's id
+     */
+    public String open(String image) throws IOException {
+        final String path = new File(image).getCanonicalPath();
+        final CostImage costs;
+        synchronized (this) {
+            CostImage cached = features.get(path);
+            if (cached == null) {
+                cached = new CostImage(path);
+                features.put(path, cached);
+            }
+            costs = cached;
+        }
+
+        ImageBuffer buffer;
+        try {
+            buffer = call(new Callable<ImageBuffer>()
+            {
+                @Override
+                public ImageBuffer call() {
+                    return costs.costs();
+                }
+            });
+        }
+        catch (ExecutionException e) {
+            synchronized (this) {
+                if (costs.task == null && !hasSessions(costs)) features.remove(path);
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+
+        String id = newId();
+        LivewireEngine engine = new LivewireEngine(buffer.rows(), buffer.cols(), costs);
+        engine.setMemoryLimit(capacity);
+        synchronized (this) {
+            sessions.put(id, new Session(engine, costs));
+        }
+        evict();
+        return id;
+    }
+
+    /**
+     * Opens a session resumed from a snapshot saved by SessionSnapshot. Its
+     * cost image is mapped from the snapshot and held by the session alone.
+     *
+     * @return the new session's id
+     */
+    public String resume(final File snapshot) throws IOException {
+        LivewireEngine engine;
+        try {
+            engine = call(new Callable<LivewireEngine>()
+            {
+                @Override
+                public LivewireEngine call() throws IOException {
+                    return SessionSnapshot.load(snapshot);
+                }
+            });
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+
+        engine.setMemoryLimit(capacity);
+        String id = newId();
+        Session session = new Session(engine, null);
+        synchronized (this) {
+            sessions.put(id, session);
+        }
+        charge(session);
+        evict();
+        return id;
+    }
+
+    /**
+     * Runs an operation on a session's engine in the shared pool, waiting
+     * for its result. Operations on one session run one at a time.
+     *
+     * @throws NoSuchElementException if there is no such session
+     */
+    public <T> T run(String id, final Operation<T> operation) {
+        final Session session;
+        synchronized (this) {
+            session = sessions.get(id);
+        }
+        if (session == null)
+            throw new NoSuchElementException("no session " + id);
+
+        try {
+            return call(new Callable<T>()
+            {
+                @Override
+                public T call() {
+                    session.lock.lock();
+                    try {
+                        return operation.run(session.engine);
+                    }
+                    finally {
+                        charge(session);
+                        session.lock.unlock();
+                    }
+                }
+            });
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            evict();
+        }
+    }
+
+    /** Ends a session, freeing its expansion; returns false if there is none */
+    public boolean release(String id) {
+        Session session;
+        synchronized (this) {
+            session = sessions.remove(id);
+        }
+        if (session == null) return false;
+        session.lock.lock();
+        try {
+            session.engine.trim();
+            charge(session);
+        }
+        finally {
+            session.lock.unlock();
+        }
+        evict();
+        return true;
+    }
+
+    /** Stops the pool once running operations have finished */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private <T> T call(Callable<T> callable) throws ExecutionException {
+        //unlike the pool's own tasks, a FutureTask reports the original failure
+        FutureTask<T> task = new FutureTask<T>(callable);
+        pool.execute(task);
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", e);
+        }
+    }
+
+    /** @return a new random session id of 32 hex digits */
+    private String newId() {
+        byte[] bytes = new byte[16];
+        ids.nextBytes(bytes);
+        StringBuilder id = new StringBuilder(32);
+        for (byte b : bytes)
+            id.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return id.toString();
+    }
+
+    /** Brings the charge for a session's expansion up to date */
+    private synchronized void charge(Session session) {
+        long bytes = session.engine.expansionBytes();
+        used += bytes - session.bytes;
+        session.bytes = bytes;
+    }
+
+    /**
+     * Trims idle sessions, then drops unused cost images, least recently used
+     * first, until the memory in use fits the capacity
+     */
+    private synchronized void evict() {
+        if (used <= capacity) return;
+        //trimming drops a session's hold on its cost image, too
+        for (Session session : sessions.values()) {
+            if (used <= capacity) break;
+            if (!session.lock.tryLock()) continue;
+            try {
+                if (!session.engine.isResident()) continue;
+                session.engine.trim();
+                charge(session);
+                evictions++;
+            }
+            finally {
+                session.lock.unlock();
+            }
+        }
+
+        Iterator<CostImage> images = features.values().iterator();
+        while (used > capacity && images.hasNext()) {
+            CostImage image = images.next();
+            if (image.task == null || !image.task.isDone() || held(image)) continue;
+            used -= image.bytes;
+            image.bytes = 0;
+            image.task = null;
+            evictions++;
+            if (!hasSessions(image)) images.remove();
+        }
+    }
+
+    /** @return whether any session holds, or may be fetching, the given cost image */
+    private boolean held(CostImage image) {
+        for (Session session : sessions.values()) {
+            if (session.image != image) continue;
+            //a busy session may be about to fetch it
+            if (session.lock.isLocked() || session.engine.isResident()) return true;
+        }
+        return false;
+    }
+
+    private boolean hasSessions(CostImage image) {
+        for (Session session : sessions.values()) {
+            if (session.image == image) return true;
+        }
+        return false;
+    }
+
+    private static boolean failed(FutureTask<ImageBuffer> task) {
+        try {
+            task.get();
+            return false;
+        }
+        catch (Exception e) {
+            return true;
+        }
+    }
+
+    private static ImageBuffer done(FutureTask<ImageBuffer> task) {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
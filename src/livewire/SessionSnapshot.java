@@ -0,0 +1,200 @@
+package livewire;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Saves a live-wire session to a file and resumes it, so that a half-finished
+ * segmentation can be picked up again later. A snapshot holds the cost image,
+ * the cooled boundary, the seeds and the expansion from the current seed, so
+ * resuming neither extracts features nor expands: the live-wire is available
+ * at once.
+ *
+ * <p>The file is a 64-byte header (magic, version, rows, columns, cost image
+ * type, flags, first seed, current seed, boundary length) followed by the
+ * boundary's points as row, column int pairs, the cost image's pixels row
+ * after row and, if the session has a seed, its expansion: one byte per
+ * pixel coding the direction of the pixel's parent, then one int per pixel
+ * holding its cumulative cost. A downsampled expansion is not saved; it is
+ * rebuilt from the seed on resuming. Snapshots are memory-mapped when
+ * resumed; the cost image is used in place, straight from the mapping.</p>
+ *
+ * @author James Gomez
+ */
+public final class SessionSnapshot
+{
+    private static final int MAGIC = 0x4C575353; //"LWSS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int CLOSED = 1;
+    private static final int EXPANDED = 2;
+    /** the most bytes mapped at once while reading cumulative costs */
+    private static final long MAX_MAPPING = 1 << 30;
+
+    private SessionSnapshot() {
+    }
+
+    /**
+     * Saves a session. The file is written beside its destination and renamed
+     * into place, so an interrupted save leaves any previous snapshot intact.
+     */
+    public static void save(LivewireEngine engine, File file) throws IOException {
+        int rows = engine.rows();
+        int cols = engine.cols();
+        ImageBuffer costs = engine.costs();
+        CostMap map = engine.expansion();
+        int firstSeed = engine.firstSeed();
+        int seed = engine.seed();
+        Boundary boundary = engine.boundary();
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(cols)
+                        .putInt(costs.type())
+                        .putInt((engine.isClosed() ? CLOSED : 0) | (map != null ? EXPANDED : 0))
+                        .putInt(firstSeed == CostMap.NONE ? -1 : engine.row(firstSeed))
+                        .putInt(firstSeed == CostMap.NONE ? -1 : engine.col(firstSeed))
+                        .putInt(seed == CostMap.NONE ? -1 : engine.row(seed))
+                        .putInt(seed == CostMap.NONE ? -1 : engine.col(seed))
+                        .putInt(boundary.size());
+                header.clear();
+                long position = write(channel, header, 0);
+
+                ByteBuffer points = ByteBuffer.allocate(8 * boundary.size());
+                for (int i = 0; i < boundary.size(); i++)
+                    points.putInt(boundary.row(i)).putInt(boundary.col(i));
+                points.flip();
+                position = write(channel, points, position);
+                position = costs.write(channel, position);
+
+                if (map != null) {
+                    byte[] parents = new byte[cols];
+                    int[] cumulative = new int[cols];
+                    ByteBuffer parentRow = ByteBuffer.wrap(parents);
+                    ByteBuffer costRow = ByteBuffer.allocate(4 * cols);
+                    long costPosition = position + (long) rows * cols;
+                    for (int i = 0; i < rows; i++) {
+                        map.exportRow(i, parents, cumulative);
+                        parentRow.clear();
+                        position = write(channel, parentRow, position);
+                        costRow.clear();
+                        costRow.asIntBuffer().put(cumulative);
+                        costPosition = write(channel, costRow, costPosition);
+                    }
+                }
+            }
+            finally {
+                raf.close();
+            }
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+                throw new IOException("could not replace " + file);
+        }
+        finally {
+            if (temp.exists()) temp.delete();
+        }
+    }
+
+    /** Resumes a saved session on a new engine */
+    public static LivewireEngine load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) throw damaged(file);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) throw damaged(file);
+            int rows = header.getInt();
+            int cols = header.getInt();
+            int type = header.getInt();
+            int flags = header.getInt();
+            int firstRow = header.getInt();
+            int firstCol = header.getInt();
+            int seedRow = header.getInt();
+            int seedCol = header.getInt();
+            int length = header.getInt();
+            boolean expanded = (flags & EXPANDED) != 0;
+
+            long pixels = (long) rows * cols;
+            long costsSize = pixels * ImageBuffer.elemSize(type);
+            long size = HEADER_SIZE + 8L * length + costsSize + (expanded ? 5 * pixels : 0);
+            if (rows <= 0 || cols <= 0 || length < 0 || channel.size() != size ||
+                    ((expanded || seedRow >= 0) && !inside(seedRow, seedCol, rows, cols)) ||
+                    (firstRow >= 0 && !inside(firstRow, firstCol, rows, cols)))
+                throw damaged(file);
+
+            ByteBuffer points = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 8L * length);
+            long position = HEADER_SIZE + 8L * length;
+            //the mappings stay valid after the channel is closed
+            ImageBuffer costs = ImageBuffer.wrap(
+                    channel.map(FileChannel.MapMode.READ_ONLY, position, costsSize), rows, cols, type);
+            position += costsSize;
+            LivewireEngine engine = new LivewireEngine(costs);
+
+            CostMap map = null;
+            if (expanded) {
+                map = new CostMap(costs);
+                MappedByteBuffer parents = channel.map(FileChannel.MapMode.READ_ONLY, position, pixels);
+                position += pixels;
+                //the cumulative costs may exceed one mapping, so map them a band of rows at a time
+                int band = (int) Math.max(1, MAX_MAPPING / (4L * cols));
+                try {
+                    for (int i = 0; i < rows; i += band) {
+                        int n = Math.min(band, rows - i);
+                        IntBuffer cumulative = channel.map(FileChannel.MapMode.READ_ONLY,
+                                position + 4L * i * cols, 4L * n * cols).asIntBuffer();
+                        for (int k = 0; k < n; k++)
+                            map.importRow(i + k, parents, cumulative);
+                    }
+                }
+                catch (IndexOutOfBoundsException e) {
+                    //a parent direction pointing off the image or at the pixel itself
+                    throw damaged(file);
+                }
+                map.importSeed(seedRow, seedCol);
+            }
+
+            for (int i = 0; i < length; i++) {
+                int row = points.getInt();
+                int col = points.getInt();
+                if (!inside(row, col, rows, cols)) throw damaged(file);
+                engine.boundary().add(engine.index(col, row));
+            }
+            engine.restore(map,
+                    firstRow < 0 ? CostMap.NONE : engine.index(firstCol, firstRow),
+                    seedRow < 0 ? CostMap.NONE : engine.index(seedCol, seedRow),
+                    (flags & CLOSED) != 0);
+            return engine;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static boolean inside(int row, int col, int rows, int cols) {
+        return row >= 0 && row < rows && col >= 0 && col < cols;
+    }
+
+    private static long write(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        return position;
+    }
+
+    private static IOException damaged(File file) {
+        return new IOException("not a live-wire session snapshot: " + file);
+    }
+}
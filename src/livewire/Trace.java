@@ -0,0 +1,76 @@
+package livewire;
+
+
+/**
+ * Trace marks the stages of the live-wire pipeline so that they show up in
+ * Java Flight Recorder recordings next to GC and JIT activity. Each stage is
+ * bracketed by begin and end; end attaches the image dimensions and the
+ * number of nodes (pixels, settled nodes or path points) the stage handled.
+ *
+ * <p>The Flight Recorder events live in the separate src-jfr source tree,
+ * which needs JDK 11 or later. When those classes are not on the class path,
+ * or the running JVM has no Flight Recorder, tracing is a no-op: begin
+ * returns null and end ignores it.</p>
+ *
+ * @author James Gomez
+ */
+public abstract class Trace
+{
+    /** The traced stages of the pipeline */
+    public enum Stage
+    {
+        IMAGE_LOAD, GRADIENT, EDGES, COST_SUM, COSTMAP_RESET, EXPANSION,
+        PATH_EXTRACTION, RENDER, SEGMENT_EXTRACTION, SEGMENT_SAVE
+    }
+
+    private static final String JFR_TRACE = "livewire.jfr.JfrTrace";
+
+    private static final Trace NONE = new Trace()
+    {
+        @Override
+        public Object begin(Stage stage) {
+            return null;
+        }
+
+        @Override
+        public void end(Object token, int rows, int cols, long nodes) {
+        }
+    };
+
+    private static final Trace instance = load();
+
+    /** @return the Flight Recorder trace if available, otherwise a no-op trace */
+    public static Trace get() {
+        return instance;
+    }
+
+    /**
+     * Marks the start of a stage
+     *
+     * @return a token to hand to end, or null when the stage is not recorded
+     */
+    public abstract Object begin(Stage stage);
+
+    /**
+     * Marks the end of the stage started by the begin call that returned
+     * token. Does nothing if token is null.
+     */
+    public abstract void end(Object token, int rows, int cols, long nodes);
+
+    private static Trace load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Trace) Class.forName(JFR_TRACE).getDeclaredConstructor().newInstance();
+        }
+        catch (ClassNotFoundException e) {
+            return NONE;
+        }
+        catch (Exception e) {
+            System.out.println("WARNING: Flight Recorder tracing unavailable: " + e);
+            return NONE;
+        }
+        catch (LinkageError e) {
+            return NONE;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package livewire;
+
+import com.googlecode.javacpp.BytePointer;
+import com.googlecode.javacpp.PointerPointer;
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_core.CvPoint;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.CvScalar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+
+/**
+ * WireRenderer draws the live-wire and the cooled boundary over the original
+ * image. The cooled boundary is drawn once into a "coolwire" layer; the
+ * live-wire is drawn over a copy of that layer.
+ *
+ * <p>Consecutive live-wires to the same seed share the part of their path
+ * nearest the seed, since both follow the same tree of parent pointers. Only
+ * the part that differs, near the cursor, is erased and redrawn. Erasing works
+ * on small tiles: each tile remembers which path segments cross it, so after
+ * a tile has been restored from the cooled layer the surviving segments that
+ * cross it can be drawn again. Per-event draw work therefore depends on how
+ * much of the path changed, not on the path length or the image area.</p>
+ *
+ * <p>Wires are drawn as polylines: the points of each contiguous run of
+ * segments are packed into a native point array from Java, and all the runs
+ * of a redraw are handed to a single cvPolyLine call as separate contours,
+ * instead of one cvDrawLine call per segment.</p>
+ *
+ * @author James Gomez
+ */
+public class WireRenderer
+{
+    /** the width and height of an erase tile, in pixels */
+    private static final int TILE = 16;
+    /** the thickness of drawn wires, in pixels */
+    private static final int THICKNESS = 2;
+    /** the margin around a segment covered by its line width */
+    private static final int PAD = THICKNESS;
+
+    private final CvMat origImage;
+    private final CvMat livewire;
+    private final CvMat coolwire;
+    private final int rows;
+    private final int cols;
+
+    /** packed (x, y) points shared with native code through a direct buffer */
+    private IntBuffer pointData;
+    private CvPoint points;
+    /** the same points as bytes, to address each run's first point */
+    private BytePointer pointBytes;
+    private final int[] pointCount = new int[1];
+    /** per run of a redraw, its first point and its number of points */
+    private PointerPointer runPoints = new PointerPointer(16);
+    private int[] runCounts = new int[16];
+    private final CvRect rect = new CvRect();
+    private final CvMat srcRegion = new CvMat();
+    private final CvMat dstRegion = new CvMat();
+
+    /**
+     * the pixels (row * cols + col) of the drawn live-wire, ordered from the
+     * seed to the cursor. Segment i joins path[i - 1] and path[i].
+     */
+    private int[] path = new int[1024];
+    private int pathLength;
+    /** the new path as walked from the cursor towards the seed */
+    private int[] walk = new int[1024];
+    /** frame stamps used to visit each segment at most once per redraw */
+    private int[] segmentStamp = new int[1024];
+    /** the positions of the segments to draw in the current frame */
+    private int[] pending = new int[1024];
+    private int pendingCount;
+
+    /** per tile, the ascending positions of the path segments crossing it */
+    private final int[][] tileSegments;
+    private final int[] tileCount;
+    /** frame stamps used to erase each tile at most once per redraw */
+    private final int[] tileStamp;
+    private final int tilesX;
+    private int[] erased = new int[64];
+    private int erasedCount;
+    private int frame;
+
+    public WireRenderer(CvMat origImage) {
+        this.origImage = origImage;
+        rows = origImage.rows();
+        cols = origImage.cols();
+        livewire = CvMat.create(rows, cols, origImage.type(), origImage.channels());
+        coolwire = CvMat.create(rows, cols, origImage.type(), origImage.channels());
+
+        tilesX = (cols + TILE - 1) / TILE;
+        int tiles = tilesX * ((rows + TILE - 1) / TILE);
+        tileSegments = new int[tiles][];
+        tileCount = new int[tiles];
+        tileStamp = new int[tiles];
+        ensurePoints(1024);
+        clear();
+    }
+
+    /** @return the image holding the original image, cooled boundary and live-wire */
+    public CvMat image() {
+        return livewire;
+    }
+
+    /** Removes the live-wire and the cooled boundary */
+    public void clear() {
+        livewire.put(origImage);
+        coolwire.put(origImage);
+        forgetPath();
+    }
+
+    /**
+     * Draws the live-wire from pixel start along the engine's parent pointers
+     * to pixel end, replacing the previously drawn live-wire.
+     *
+     * @return the number of points on the live-wire
+     */
+    public int drawLiveWire(LivewireEngine engine, int start, int end) {
+        frame++;
+        erasedCount = 0;
+        pendingCount = 0;
+
+        //walk the new path from the cursor to the seed
+        int length = 0;
+        while (true) {
+            if (length == walk.length) walk = grow(walk);
+            walk[length++] = start;
+            if (start == end || engine.parent(start) == CostMap.NONE) break;
+            start = engine.parent(start);
+        }
+
+        //find how much of the drawn path, counted from the seed, is unchanged
+        int common = 0;
+        int limit = Math.min(length, pathLength);
+        while (common < limit && path[common] == walk[length - 1 - common])
+            common++;
+        int firstChanged = Math.max(common, 1);
+
+        //erase the segments that are no longer part of the path
+        for (int i = firstChanged; i < pathLength; i++)
+            visitTiles(i, false);
+        truncate(firstChanged);
+
+        //append the new segments
+        while (path.length < length) path = grow(path);
+        if (segmentStamp.length < path.length) segmentStamp = new int[path.length];
+        for (int i = common; i < length; i++)
+            path[i] = walk[length - 1 - i];
+        pathLength = length;
+        for (int i = firstChanged; i < pathLength; i++)
+            visitTiles(i, true);
+
+        //redraw the surviving segments crossing erased tiles, and the new ones
+        for (int t = 0; t < erasedCount; t++) {
+            int tile = erased[t];
+            for (int k = 0; k < tileCount[tile]; k++)
+                addPending(tileSegments[tile][k]);
+        }
+        for (int i = firstChanged; i < pathLength; i++)
+            addPending(i);
+        drawPending();
+        return length;
+    }
+
+    /** Draws the boundary into the cooled layer and shows it in the live-wire image */
+    public void drawCoolWire(Boundary boundary) {
+        if (boundary.size() > 1) {
+            ensurePoints(boundary.size());
+            pointData.clear();
+            for (int i = 0; i < boundary.size(); i++)
+                pointData.put(boundary.col(i)).put(boundary.row(i));
+            polyLine(coolwire, boundary.size(), CvScalar.CYAN);
+        }
+        livewire.put(coolwire);
+        forgetPath();
+    }
+
+    /** Drops all knowledge of the drawn live-wire without erasing anything */
+    private void forgetPath() {
+        truncate(1);
+        pathLength = 0;
+    }
+
+    /** Removes segments at positions from and above from the tiles they cross */
+    private void truncate(int from) {
+        for (int i = from; i < pathLength; i++) {
+            int p = path[i - 1];
+            int q = path[i];
+            int tx0 = tileX(Math.min(p % cols, q % cols) - PAD);
+            int tx1 = tileX(Math.max(p % cols, q % cols) + PAD);
+            int ty0 = tileY(Math.min(p / cols, q / cols) - PAD);
+            int ty1 = tileY(Math.max(p / cols, q / cols) + PAD);
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    int tile = ty * tilesX + tx;
+                    while (tileCount[tile] > 0 &&
+                            tileSegments[tile][tileCount[tile] - 1] >= from)
+                        tileCount[tile]--;
+                }
+            }
+        }
+        pathLength = Math.min(pathLength, from);
+    }
+
+    /**
+     * For every tile crossed by the segment at the given position, either
+     * registers the segment with the tile or erases the tile.
+     */
+    private void visitTiles(int segment, boolean register) {
+        int p = path[segment - 1];
+        int q = path[segment];
+        int tx0 = tileX(Math.min(p % cols, q % cols) - PAD);
+        int tx1 = tileX(Math.max(p % cols, q % cols) + PAD);
+        int ty0 = tileY(Math.min(p / cols, q / cols) - PAD);
+        int ty1 = tileY(Math.max(p / cols, q / cols) + PAD);
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                int tile = ty * tilesX + tx;
+                if (register)
+                    addSegment(tile, segment);
+                else
+                    eraseTile(tile, tx, ty);
+            }
+        }
+    }
+
+    private void addSegment(int tile, int segment) {
+        int[] segments = tileSegments[tile];
+        if (segments == null)
+            segments = tileSegments[tile] = new int[8];
+        else if (tileCount[tile] == segments.length)
+            segments = tileSegments[tile] = grow(segments);
+        segments[tileCount[tile]++] = segment;
+    }
+
+    /** Restores a tile from the cooled layer, once per frame */
+    private void eraseTile(int tile, int tx, int ty) {
+        if (tileStamp[tile] == frame) return;
+        tileStamp[tile] = frame;
+        if (erasedCount == erased.length) erased = grow(erased);
+        erased[erasedCount++] = tile;
+
+        int x = tx * TILE;
+        int y = ty * TILE;
+        rect.x(x).y(y).width(Math.min(TILE, cols - x)).height(Math.min(TILE, rows - y));
+        opencv_core.cvGetSubRect(coolwire, srcRegion, rect);
+        opencv_core.cvGetSubRect(livewire, dstRegion, rect);
+        opencv_core.cvCopy(srcRegion, dstRegion);
+    }
+
+    /** Queues the segment at the given path position, once per frame */
+    private void addPending(int segment) {
+        if (segmentStamp[segment] == frame) return;
+        segmentStamp[segment] = frame;
+        if (pendingCount == pending.length) pending = grow(pending);
+        pending[pendingCount++] = segment;
+    }
+
+    /**
+     * Draws the queued segments in one cvPolyLine call, each contiguous run
+     * of them as a contour of its own
+     */
+    private void drawPending() {
+        if (pendingCount == 0) return;
+        Arrays.sort(pending, 0, pendingCount);
+
+        //count the runs and their points first, so the buffers are sized once
+        int runs = 0;
+        int total = 0;
+        for (int i = 0; i < pendingCount; i++) {
+            if (i == 0 || pending[i] != pending[i - 1] + 1) {
+                runs++;
+                total++;
+            }
+            total++;
+        }
+        ensurePoints(total);
+        if (runCounts.length < runs) {
+            runCounts = new int[Math.max(runs, 2 * runCounts.length)];
+            runPoints = new PointerPointer(runCounts.length);
+        }
+
+        pointData.clear();
+        int run = 0;
+        int i = 0;
+        while (i < pendingCount) {
+            int first = pending[i];
+            int last = first;
+            while (i + 1 < pendingCount && pending[i + 1] == last + 1)
+                last = pending[++i];
+            i++;
+
+            //a run starts at the pixel before its first segment
+            runPoints.put(run, pointBytes.position(4 * pointData.position()));
+            runCounts[run++] = last - first + 2;
+            for (int k = first - 1; k <= last; k++)
+                pointData.put(path[k] % cols).put(path[k] / cols);
+        }
+        pointBytes.position(0);
+        opencv_core.cvPolyLine(livewire, runPoints, runCounts, runs, 0, CvScalar.RED,
+                THICKNESS, 8, 0);
+    }
+
+    /** Draws the first count packed points as one open polyline */
+    private void polyLine(CvMat target, int count, CvScalar color) {
+        pointCount[0] = count;
+        opencv_core.cvPolyLine(target, points, pointCount, 1, 0, color,
+                THICKNESS, 8, 0);
+    }
+
+    /** Makes room for at least count packed points */
+    private void ensurePoints(int count) {
+        if (pointData != null && pointData.capacity() >= 2 * count) return;
+        int capacity = pointData == null ? count : Math.max(count, pointData.capacity());
+        ByteBuffer bytes = ByteBuffer.allocateDirect(8 * capacity)
+                .order(ByteOrder.nativeOrder());
+        pointData = bytes.asIntBuffer();
+        pointBytes = new BytePointer(bytes);
+        points = new CvPoint(pointBytes);
+    }
+
+    private int tileX(int x) {
+        return Math.min(Math.max(x, 0), cols - 1) / TILE;
+    }
+
+    private int tileY(int y) {
+        return Math.min(Math.max(y, 0), rows - 1) / TILE;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
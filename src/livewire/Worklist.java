@@ -0,0 +1,280 @@
+package livewire;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMat;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_highgui;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * An ordered list of images to segment one after another. While the user
+ * works on one image, a background thread loads the next ones: it decodes
+ * them, extracts their cost images and builds their expansions' buffers, so
+ * that moving on to the next image is immediate.
+ *
+ * <p>Up to lookahead images are loaded ahead of the current one, in list
+ * order, and only while their estimated memory fits in a MemoryBudget
+ * together with the current image's. An image's reservation is held from
+ * its loading until done is called for it. The reservation is made before
+ * the image is decoded, from the size in its header, as BatchSegmenter
+ * does; an image whose header ImageIO cannot read holds the whole budget
+ * until it has been decoded.</p>
+ *
+ * @author James Gomez
+ */
+public class Worklist
+{
+    /**
+     * the estimated memory of a loaded image per pixel, besides its
+     * expansion: its color and grayscale copies and its cost image
+     */
+    static final long BYTES_PER_PIXEL = 6;
+    private static final String[] EXTENSIONS = {
+            ".bmp", ".jpeg", ".jpg", ".pgm", ".png", ".ppm", ".tif", ".tiff" };
+
+    /** A loaded image, ready to segment */
+    public static class Item
+    {
+        public final File file;
+        /** the image in color (BGRA) and in grayscale */
+        public final CvMat color;
+        public final CvMat gray;
+        /** a session on the image, its cost image fetched and its buffers built */
+        public final LivewireEngine engine;
+        final long bytes;
+
+        Item(File file, CvMat color, CvMat gray, LivewireEngine engine, long bytes) {
+            this.file = file;
+            this.color = color;
+            this.gray = gray;
+            this.engine = engine;
+            this.bytes = bytes;
+        }
+    }
+
+    private final List<File> files;
+    private final int lookahead;
+    private final MemoryBudget budget;
+    private final ExecutorService loader;
+    /** the images being loaded, in list order, from the next one on */
+    private final ArrayDeque<Future<Item>> loading = new ArrayDeque<Future<Item>>();
+    /** the index of the next image to hand out, and of the next to load */
+    private int next;
+    private int scheduled;
+    private FeatureCache cache;
+
+    /**
+     * Creates a worklist of the given images, loading up to lookahead of them
+     * ahead of the current one within the given budget
+     */
+    public Worklist(List<File> files, int lookahead, MemoryBudget budget) {
+        this.files = new ArrayList<File>(files);
+        this.lookahead = lookahead;
+        this.budget = budget;
+        loader = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "worklist-loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Lists the images of a worklist: the image files of a directory, by
+     * name, or the paths listed one per line in a text file, relative to
+     * the file's directory. Empty lines and lines starting with # are
+     * ignored.
+     */
+    public static List<File> list(File file) throws IOException {
+        List<File> files = new ArrayList<File>();
+        if (file.isDirectory()) {
+            File[] entries = file.listFiles();
+            if (entries == null)
+                throw new IOException("could not list " + file);
+            Arrays.sort(entries);
+            for (File entry : entries) {
+                if (entry.isFile() && isImage(entry.getName())) files.add(entry);
+            }
+            return files;
+        }
+
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                File entry = new File(line);
+                files.add(entry.isAbsolute() ? entry : new File(file.getAbsoluteFile().getParentFile(), line));
+            }
+        }
+        finally {
+            in.close();
+        }
+        return files;
+    }
+
+    private static boolean isImage(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension)) return true;
+        }
+        return false;
+    }
+
+    /** Reads and stores cost images in the given cache; null disables it */
+    public void setFeatureCache(FeatureCache cache) {
+        this.cache = cache;
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public boolean hasNext() {
+        return next < files.size();
+    }
+
+    /**
+     * Returns the next image, waiting for it to load if the background
+     * thread has not finished it yet. Call done once the image is finished
+     * with, to let the following images load.
+     *
+     * @throws IOException if the image could not be loaded; the worklist
+     *                     moves on past it all the same
+     */
+    public Item next() throws IOException, InterruptedException {
+        if (!hasNext())
+            throw new NoSuchElementException("the worklist is finished");
+        schedule();
+        Future<Item> item = loading.poll();
+        next++;
+        try {
+            return item.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            schedule();
+        }
+    }
+
+    /** Frees an image's reservation in the budget, so later images may load */
+    public void done(Item item) {
+        budget.release(item.bytes);
+    }
+
+    /** Stops loading, freeing the images loaded but not handed out */
+    public void shutdown() {
+        loader.shutdownNow();
+        for (Future<Item> item : loading) {
+            if (item.cancel(true)) continue;
+            try {
+                done(item.get());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                //it holds no reservation
+            }
+            catch (CancellationException e) {
+                //it holds no reservation
+            }
+        }
+        loading.clear();
+    }
+
+    /** Queues the images up to lookahead past the next one for loading */
+    private void schedule() {
+        int end = (int) Math.min(files.size(), next + 1L + lookahead);
+        while (scheduled < end) {
+            final File file = files.get(scheduled++);
+            loading.add(loader.submit(new Callable<Item>()
+            {
+                @Override
+                public Item call() throws IOException, InterruptedException {
+                    return load(file);
+                }
+            }));
+        }
+    }
+
+    private Item load(File file) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        int[] size = BatchSegmenter.imageSize(file);
+        long bytes = size != null ? bytes(size[0], size[1]) : budget.capacity();
+        budget.reserve(bytes);
+        try {
+            IplImage color = opencv_highgui.cvLoadImageBGRA(file.getPath());
+            CvMat gray = opencv_highgui.cvLoadImageM(file.getPath(), opencv_core.CV_8U);
+            if (color == null || gray == null)
+                throw new IOException("could not load image " + file);
+            if (size == null) {
+                //the size is known now: keep what the image needs of the whole budget
+                long needed = bytes(gray.rows(), gray.cols());
+                if (needed < bytes) {
+                    budget.release(bytes - needed);
+                    bytes = needed;
+                }
+            }
+
+            ImageBuffer costs = cache != null
+                    ? cache.costs(file, gray)
+                    : ImageBuffer.wrap(Features.costImage(gray));
+            LivewireEngine engine = new LivewireEngine(costs);
+            engine.setMemoryLimit(budget.capacity());
+            engine.prepare();
+            System.out.println("Prefetched \"" + file.getName() + "\" in " +
+                    (System.nanoTime() - start) / 1000000 + " ms");
+            return new Item(file, color.asCvMat(), gray, engine, bytes);
+        }
+        catch (IOException e) {
+            budget.release(bytes);
+            throw e;
+        }
+        catch (RuntimeException e) {
+            budget.release(bytes);
+            throw e;
+        }
+        catch (Error e) {
+            budget.release(bytes);
+            throw e;
+        }
+    }
+
+    /** @return the estimated memory of a loaded image of the given size */
+    private long bytes(int rows, int cols) {
+        return (long) rows * cols * BYTES_PER_PIXEL +
+                LivewireEngine.expansionBytes(rows, cols, budget.capacity());
+    }
+}